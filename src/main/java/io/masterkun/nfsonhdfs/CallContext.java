@@ -12,6 +12,10 @@ import java.net.InetAddress;
 import java.security.Principal;
 import java.util.NoSuchElementException;
 
+/**
+ * 请求上下文，保存在处理请求的线程中，开启虚拟线程时每个请求使用独立的虚拟线程，
+ * 请求结束时清理所有状态，不会残留在复用的线程上
+ */
 public class CallContext {
 
     private static final ThreadLocal<CompoundContext> SUBJECT_TL = new ThreadLocal<>();
@@ -24,6 +28,7 @@ public class CallContext {
 
     static void clearCtx() {
         SUBJECT_TL.remove();
+        REAL_PRINCIPAL_TL.remove();
     }
 
     public static void setRealPrincipal(String realPrincipal) {
@@ -11,6 +11,7 @@ import com.hazelcast.core.HazelcastInstance;
 import com.typesafe.config.ConfigFactory;
 import io.masterkun.nfsonhdfs.cache.CacheLoaderHelper;
 import io.masterkun.nfsonhdfs.cache.DistributedVfsCache;
+import io.masterkun.nfsonhdfs.cache.SmallFileVfsCache;
 import io.masterkun.nfsonhdfs.idmapping.AbstractIdMapping;
 import io.masterkun.nfsonhdfs.util.AppConfig;
 import io.masterkun.nfsonhdfs.util.Utils;
@@ -37,6 +38,7 @@ import org.dcache.nfs.v4.nlm.DistributedLockManager;
 import org.dcache.nfs.v4.xdr.nfs_argop4;
 import org.dcache.nfs.v4.xdr.nfs_resop4;
 import org.dcache.nfs.vfs.VirtualFileSystem;
+import org.dcache.oncrpc4j.rpc.IoStrategy;
 import org.dcache.oncrpc4j.rpc.OncRpcProgram;
 import org.dcache.oncrpc4j.rpc.OncRpcSvc;
 import org.dcache.oncrpc4j.rpc.OncRpcSvcBuilder;
@@ -56,6 +58,7 @@ import java.security.Principal;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -116,6 +119,14 @@ public class RealServerStarter {
                     appConfig.getKerberos().getDfsKeytab()
             );
         }
+        AppConfig.WriteManagerConfig writeManagerConfig = appConfig.getVfs().getWriteManager();
+        int sparseGapGraceMs = writeManagerConfig.getSparseGapGraceMs();
+        if (sparseGapGraceMs > 0 && sparseGapGraceMs >= writeManagerConfig.getWriteWaitTimeoutMs()) {
+            // 宽限期到达前写入上下文已经空闲关闭，补零不会发生
+            throw new IllegalArgumentException("sparseGapGraceMs " + sparseGapGraceMs +
+                    " must be less than writeWaitTimeoutMs " +
+                    writeManagerConfig.getWriteWaitTimeoutMs());
+        }
         Utils.init(appConfig);
 
         AppConfig.PrometheusConfig prometheusConfig = appConfig.getPrometheus();
@@ -156,6 +167,10 @@ public class RealServerStarter {
             LOG.info("Enable VfsCache");
             vfs = new DistributedVfsCache(vfs, hazelcastInstance, appConfig.getServerName());
         }
+        if (appConfig.getVfs().getSmallFileCache().isEnabled()) {
+            LOG.info("Enable SmallFileVfsCache");
+            vfs = new SmallFileVfsCache(vfs);
+        }
         // specify file with export entries
         ExportFile exportFile = new ExportFile(new File(appConfig.getExport()));
         exportFile.exports().forEach(export ->
@@ -206,6 +221,21 @@ public class RealServerStarter {
             LOG.info("Set worker_thread_pool_size={}", serverConf.getWorkerThreadPoolSize());
             builder = builder.withWorkerThreadPoolSize(serverConf.getWorkerThreadPoolSize());
         }
+        if (serverConf.isVirtualThread()) {
+            if (serverConf.getIoStrategy() != null &&
+                    serverConf.getIoStrategy() != IoStrategy.WORKER_THREAD) {
+                // 其他ioStrategy不使用工作线程池，请求仍在selector线程上处理，虚拟线程不生效
+                throw new IllegalArgumentException("virtualThread requires io_strategy " +
+                        IoStrategy.WORKER_THREAD + ", but is " + serverConf.getIoStrategy());
+            }
+            ExecutorService executor = Utils.newVirtualThreadExecutor();
+            if (executor != null) {
+                LOG.info("Enable virtual thread worker");
+                builder = builder.withWorkerThreadExecutionService(executor);
+            } else {
+                LOG.warn("Virtual thread is not supported by current jvm, use platform thread");
+            }
+        }
         if (serverConf.getIoStrategy() != null) {
             LOG.info("Set io_strategy={}", serverConf.getIoStrategy());
             builder = builder.withIoStrategy(serverConf.getIoStrategy());
@@ -0,0 +1,226 @@
+package io.masterkun.nfsonhdfs.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.masterkun.nfsonhdfs.util.memory.CustomPooledMemoryManagerFactory;
+import io.masterkun.nfsonhdfs.util.memory.DirectByteBufferPool;
+import io.prometheus.client.Gauge;
+import org.dcache.nfs.vfs.ForwardingFileSystem;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 小文件缓存，小于指定大小的文件整个读取到堆外内存中，使用文件的修改时间和大小校验缓存，
+ * 重复读取小文件时不再访问HDFS
+ */
+public class SmallFileVfsCache extends ForwardingFileSystem {
+    private static final DirectByteBufferPool BYTE_BUFFER_POOL =
+            CustomPooledMemoryManagerFactory.BYTE_BUFFER_POOL;
+    private static final Gauge SMALL_FILE_CACHE_BYTES_GAUGE = Gauge.build()
+            .name("small_file_cache_bytes")
+            .help("Small File Cache Bytes")
+            .register();
+    private final VirtualFileSystem inner;
+    private final long maxFileSize;
+    private final Cache<Long, CachedFile> cache;
+
+    public SmallFileVfsCache(VirtualFileSystem inner) {
+        this.inner = inner;
+        AppConfig.SmallFileCacheConfig config = Utils.getServerConfig().getVfs().getSmallFileCache();
+        this.maxFileSize = config.getMaxFileSize();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(config.getCapacity())
+                .weigher((Long key, CachedFile value) -> value.size)
+                .expireAfterAccess(config.getExpireAfterAccessMs(), TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<Long, CachedFile>) (key, value, cause) -> {
+                    if (value != null) {
+                        value.release();
+                    }
+                })
+                .recordStats()
+                .build();
+        Utils.getCacheMetricsCollector().addCache("small_file_cache", cache);
+    }
+
+    @Override
+    protected VirtualFileSystem delegate() {
+        return inner;
+    }
+
+    @Override
+    public int read(Inode inode, byte[] data, long offset, int count) throws IOException {
+        CachedFile file = getCachedFile(inode);
+        if (file == null) {
+            return inner.read(inode, data, offset, count);
+        }
+        try {
+            int read = file.copyTo(offset, ByteBuffer.wrap(data, 0, count));
+            return read == 0 ? -1 : read;
+        } finally {
+            file.release();
+        }
+    }
+
+    @Override
+    public int read(Inode inode, ByteBuffer data, long offset) throws IOException {
+        CachedFile file = getCachedFile(inode);
+        if (file == null) {
+            return inner.read(inode, data, offset);
+        }
+        try {
+            return file.copyTo(offset, data);
+        } finally {
+            file.release();
+        }
+    }
+
+    /**
+     * 获取已缓存的文件数据，缓存不存在或者已失效时重新读取整个文件
+     *
+     * @return 已持有引用的缓存文件，使用后需要释放，不是小文件时返回空
+     */
+    private CachedFile getCachedFile(Inode inode) throws IOException {
+        Stat stat = inner.getattr(inode);
+        if (stat.type() != Stat.Type.REGULAR || stat.getSize() > maxFileSize) {
+            return null;
+        }
+        long fileId = Utils.getFileId(inode);
+        CachedFile file = cache.getIfPresent(fileId);
+        if (file != null) {
+            if (file.mtime == stat.getMTime() && file.size == stat.getSize() && file.retain()) {
+                return file;
+            }
+            cache.asMap().remove(fileId, file);
+        }
+        file = load(inode, stat);
+        if (file == null) {
+            return null;
+        }
+        file.retain();
+        // 被替换的缓存文件由removalListener释放
+        cache.put(fileId, file);
+        return file;
+    }
+
+    private CachedFile load(Inode inode, Stat stat) throws IOException {
+        int size = (int) stat.getSize();
+        ByteBuffer buffer = BYTE_BUFFER_POOL.take(size).limit(size);
+        try {
+            while (buffer.hasRemaining()) {
+                int read = inner.read(inode, buffer, buffer.position());
+                if (read <= 0) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            BYTE_BUFFER_POOL.give(buffer);
+            throw e;
+        }
+        if (buffer.hasRemaining()) {
+            // 读取过程中文件被修改，不缓存
+            BYTE_BUFFER_POOL.give(buffer);
+            return null;
+        }
+        buffer.flip();
+        return new CachedFile(stat.getMTime(), size, buffer);
+    }
+
+    private void invalidate(Inode inode) {
+        cache.invalidate(Utils.getFileId(inode));
+    }
+
+    @Override
+    public WriteResult write(Inode inode, byte[] data, long offset, int count,
+                             StabilityLevel stabilityLevel) throws IOException {
+        invalidate(inode);
+        return inner.write(inode, data, offset, count, stabilityLevel);
+    }
+
+    @Override
+    public WriteResult write(Inode inode, ByteBuffer data, long offset,
+                             StabilityLevel stabilityLevel) throws IOException {
+        invalidate(inode);
+        return inner.write(inode, data, offset, stabilityLevel);
+    }
+
+    @Override
+    public void commit(Inode inode, long offset, int count) throws IOException {
+        try {
+            inner.commit(inode, offset, count);
+        } finally {
+            invalidate(inode);
+        }
+    }
+
+    @Override
+    public void setattr(Inode inode, Stat stat) throws IOException {
+        try {
+            inner.setattr(inode, stat);
+        } finally {
+            invalidate(inode);
+        }
+    }
+
+    @Override
+    public void remove(Inode parent, String path) throws IOException {
+        Inode inode = inner.lookup(parent, path);
+        try {
+            inner.remove(parent, path);
+        } finally {
+            invalidate(inode);
+        }
+    }
+
+    /**
+     * 缓存的文件数据，缓存持有一个引用，读取时持有引用，引用全部释放后归还缓冲区
+     */
+    private static final class CachedFile {
+        private final long mtime;
+        private final int size;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+
+        private CachedFile(long mtime, int size, ByteBuffer buffer) {
+            this.mtime = mtime;
+            this.size = size;
+            this.buffer = buffer;
+            SMALL_FILE_CACHE_BYTES_GAUGE.inc(size);
+        }
+
+        private boolean retain() {
+            int current;
+            do {
+                current = refCnt.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!refCnt.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        private void release() {
+            if (refCnt.decrementAndGet() == 0) {
+                SMALL_FILE_CACHE_BYTES_GAUGE.dec(size);
+                BYTE_BUFFER_POOL.give(buffer);
+            }
+        }
+
+        private int copyTo(long offset, ByteBuffer data) {
+            if (offset >= size) {
+                return 0;
+            }
+            int n = (int) Math.min(size - offset, data.remaining());
+            data.put(buffer.slice((int) offset, n));
+            return n;
+        }
+    }
+}
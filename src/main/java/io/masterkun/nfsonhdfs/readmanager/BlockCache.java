@@ -0,0 +1,260 @@
+package io.masterkun.nfsonhdfs.readmanager;
+
+import io.masterkun.nfsonhdfs.cache.StatHolder;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.dcache.nfs.vfs.Stat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 堆外数据块缓存，按照(文件id, 块序号)缓存固定大小的文件数据块，所有客户端共享，
+ * 使用CLOCK算法淘汰，文件修改时间或者大小变化后缓存失效
+ */
+final class BlockCache {
+    private static final Counter BLOCK_CACHE_HIT_COUNTER = Counter.build()
+            .name("block_cache_hit")
+            .help("Block Cache Hit")
+            .register();
+    private static final Counter BLOCK_CACHE_MISS_COUNTER = Counter.build()
+            .name("block_cache_miss")
+            .help("Block Cache Miss")
+            .register();
+    private static final Counter BLOCK_CACHE_EVICTION_COUNTER = Counter.build()
+            .name("block_cache_eviction")
+            .help("Block Cache Eviction")
+            .register();
+    private static final Counter BLOCK_CACHE_SAVED_BYTES_COUNTER = Counter.build()
+            .name("block_cache_saved_bytes")
+            .help("Bytes Served From Block Cache")
+            .register();
+    private static final Gauge BLOCK_CACHE_BYTES_GAUGE = Gauge.build()
+            .name("block_cache_bytes")
+            .help("Block Cache Allocated Bytes")
+            .register();
+
+    private final int chunkSize;
+    private final Slot[] slots;
+    private final ConcurrentHashMap<ChunkKey, Slot> index = new ConcurrentHashMap<>();
+    /**
+     * 文件版本，文件被修改后删除版本使该文件所有已缓存数据块失效
+     */
+    private final ConcurrentHashMap<Long, FileVersion> versions = new ConcurrentHashMap<>();
+    private final AtomicLong versionSeq = new AtomicLong();
+    private int hand;
+
+    BlockCache(long capacity, int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.slots = new Slot[(int) Math.max(1, capacity / chunkSize)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * 从缓存读取数据，缓存未命中的数据块通过loader读取后加入缓存
+     *
+     * @return 读取数据大小，到达文件末尾返回-1
+     */
+    int read(long fileId, long offset, ByteBuffer data, ChunkLoader loader) throws IOException {
+        int read = 0;
+        while (data.hasRemaining()) {
+            long position = offset + read;
+            long chunkIndex = position / chunkSize;
+            int chunkOffset = (int) (position % chunkSize);
+            int n = readChunk(fileId, chunkIndex, chunkOffset, data, loader);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
+            if (chunkOffset + n < chunkSize) {
+                // 数据块不满或者缓冲区已满
+                break;
+            }
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    private int readChunk(long fileId, long chunkIndex, int chunkOffset, ByteBuffer data,
+                          ChunkLoader loader) throws IOException {
+        long version = currentVersion(fileId);
+        ChunkKey key = new ChunkKey(fileId, chunkIndex);
+        Slot slot = index.get(key);
+        if (slot != null && slot.pin(key, version)) {
+            try {
+                BLOCK_CACHE_HIT_COUNTER.inc();
+                int n = slot.copyTo(chunkOffset, data);
+                BLOCK_CACHE_SAVED_BYTES_COUNTER.inc(n);
+                ReadManagerImpl.READ_BYTES_COUNTER.labels("block_cache").inc(n);
+                return n;
+            } finally {
+                slot.unpin();
+            }
+        }
+        BLOCK_CACHE_MISS_COUNTER.inc();
+        slot = acquire();
+        if (slot == null) {
+            // 所有数据块都在被读取，不经过缓存直接读取
+            int read = loader.read(fileId, chunkIndex * chunkSize + chunkOffset, data);
+            if (read > 0) {
+                ReadManagerImpl.READ_BYTES_COUNTER.labels("hdfs").inc(read);
+            }
+            return Math.max(read, 0);
+        }
+        try {
+            ByteBuffer buffer = slot.buffer.clear();
+            long position = chunkIndex * chunkSize;
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                int read = loader.read(fileId, position + length, buffer);
+                if (read <= 0) {
+                    break;
+                }
+                length += read;
+            }
+            slot.key = key;
+            slot.version = version;
+            slot.length = length;
+            slot.referenced = true;
+            index.put(key, slot);
+            int n = slot.copyTo(chunkOffset, data);
+            ReadManagerImpl.READ_BYTES_COUNTER.labels("block_cache").inc(n);
+            return n;
+        } catch (IOException | RuntimeException e) {
+            slot.key = null;
+            throw e;
+        } finally {
+            slot.pins.set(0);
+        }
+    }
+
+    /**
+     * 按照CLOCK算法获取一个独占的数据块，被读取中的数据块不会被淘汰
+     *
+     * @return 独占的数据块，所有数据块都在被读取时返回空
+     */
+    private synchronized Slot acquire() {
+        for (int i = 0; i < slots.length * 2; i++) {
+            Slot slot = slots[hand];
+            hand = (hand + 1) % slots.length;
+            if (!slot.pins.compareAndSet(0, -1)) {
+                continue;
+            }
+            if (slot.key != null) {
+                boolean current = isCurrent(slot);
+                if (current && slot.referenced) {
+                    // 最近被访问过，给予第二次机会
+                    slot.referenced = false;
+                    slot.pins.set(0);
+                    continue;
+                }
+                index.remove(slot.key, slot);
+                if (current) {
+                    BLOCK_CACHE_EVICTION_COUNTER.inc();
+                }
+                slot.key = null;
+            }
+            if (slot.buffer == null) {
+                slot.buffer = ByteBuffer.allocateDirect(chunkSize);
+                BLOCK_CACHE_BYTES_GAUGE.inc(chunkSize);
+            }
+            return slot;
+        }
+        return null;
+    }
+
+    private boolean isCurrent(Slot slot) {
+        FileVersion fileVersion = versions.get(slot.key.fileId());
+        return fileVersion != null && fileVersion.version() == slot.version;
+    }
+
+    private long currentVersion(long fileId) {
+        FileVersion fileVersion = versions.get(fileId);
+        if (fileVersion == null) {
+            if (versions.size() > slots.length * 4L) {
+                // 防止文件版本无限增长，清空后所有已缓存数据块在下次访问时失效
+                versions.clear();
+            }
+            fileVersion = versions.computeIfAbsent(fileId,
+                    k -> new FileVersion(-1, -1, versionSeq.incrementAndGet()));
+        }
+        return fileVersion.version();
+    }
+
+    void invalidate(long fileId) {
+        versions.remove(fileId);
+    }
+
+    /**
+     * 使用文件最新的状态校验缓存，修改时间或者大小变化后该文件缓存失效
+     *
+     * @return 缓存是否失效
+     */
+    boolean validate(long fileId, StatHolder statHolder) {
+        Stat stat = statHolder.getStatNotCreate();
+        long mtime = stat.getMTime();
+        long size = stat.getSize();
+        FileVersion fileVersion = versions.computeIfPresent(fileId, (k, v) -> {
+            if (v.mtime() == -1) {
+                return new FileVersion(mtime, size, v.version());
+            }
+            return v.mtime() == mtime && v.size() == size ? v : null;
+        });
+        return fileVersion == null;
+    }
+
+    interface ChunkLoader {
+        int read(long fileId, long position, ByteBuffer data) throws IOException;
+    }
+
+    private record ChunkKey(long fileId, long chunkIndex) {
+    }
+
+    private record FileVersion(long mtime, long size, long version) {
+    }
+
+    private static final class Slot {
+        /**
+         * 读取计数，-1表示被独占用于淘汰或者加载
+         */
+        private final AtomicInteger pins = new AtomicInteger();
+        private volatile boolean referenced;
+        private ByteBuffer buffer;
+        private ChunkKey key;
+        private long version;
+        private int length;
+
+        private boolean pin(ChunkKey key, long version) {
+            int current;
+            do {
+                current = pins.get();
+                if (current < 0) {
+                    return false;
+                }
+            } while (!pins.compareAndSet(current, current + 1));
+            if (key.equals(this.key) && this.version == version) {
+                referenced = true;
+                return true;
+            }
+            unpin();
+            return false;
+        }
+
+        private void unpin() {
+            pins.decrementAndGet();
+        }
+
+        private int copyTo(int chunkOffset, ByteBuffer data) {
+            int n = Math.min(length - chunkOffset, data.remaining());
+            if (n <= 0) {
+                return 0;
+            }
+            data.put(buffer.slice(chunkOffset, n));
+            return n;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package io.masterkun.nfsonhdfs.readmanager;
+
+import io.masterkun.nfsonhdfs.util.memory.CustomPooledMemoryManagerFactory;
+import io.masterkun.nfsonhdfs.util.memory.DirectByteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 文件预读上下文，每个上下文对应一个文件，按照读取偏移量识别同一文件上的多个顺序读取流，
+ * 识别为顺序读取后异步预读后续数据到池化的直接内存中
+ */
+final class ReadAheadContext {
+    private static final Logger LOG = LoggerFactory.getLogger(ReadAheadContext.class);
+    private static final DirectByteBufferPool BYTE_BUFFER_POOL =
+            CustomPooledMemoryManagerFactory.BYTE_BUFFER_POOL;
+
+    private final long fileId;
+    private final ReadManagerImpl manager;
+    private final ReadAheadStream[] streams;
+    private volatile boolean closed;
+    /**
+     * 预读时发现的文件长度，不再预读超过该长度的数据
+     */
+    private volatile long fileLength = Long.MAX_VALUE;
+
+    ReadAheadContext(long fileId, ReadManagerImpl manager) {
+        this.fileId = fileId;
+        this.manager = manager;
+        this.streams = new ReadAheadStream[manager.maxStreams];
+    }
+
+    int read(ByteBuffer data, long offset) throws IOException {
+        return selectStream(offset).read(data, offset);
+    }
+
+    /**
+     * 选择期望偏移量与读取偏移量一致的读取流，没有则新建或者复用最久未访问的读取流
+     */
+    private synchronized ReadAheadStream selectStream(long offset) {
+        ReadAheadStream lru = null;
+        for (int i = 0; i < streams.length; i++) {
+            ReadAheadStream stream = streams[i];
+            if (stream == null) {
+                return streams[i] = new ReadAheadStream();
+            }
+            if (stream.expectedOffset == offset) {
+                return stream;
+            }
+            if (lru == null || stream.lastAccess < lru.lastAccess) {
+                lru = stream;
+            }
+        }
+        return lru;
+    }
+
+    void close() {
+        closed = true;
+        ReadAheadStream[] streams;
+        synchronized (this) {
+            streams = this.streams.clone();
+        }
+        for (ReadAheadStream stream : streams) {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    private final class ReadAheadStream {
+        /**
+         * 预读数据段，按照偏移量升序排列且首尾相连
+         */
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        /**
+         * 读取时会阻塞在HDFS读取上，使用ReentrantLock而不是synchronized，避免虚拟线程阻塞时占用平台线程
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long expectedOffset = -1;
+        private volatile long lastAccess = System.nanoTime();
+        private int sequentialCount;
+        private int window;
+        private long prefetchOffset;
+
+        int read(ByteBuffer data, long offset) throws IOException {
+            lock.lock();
+            try {
+                return doRead(data, offset);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int doRead(ByteBuffer data, long offset) throws IOException {
+            lastAccess = System.nanoTime();
+            if (offset != expectedOffset) {
+                // 随机读或者新的读取流，丢弃已预读数据并重新识别
+                discard();
+                sequentialCount = 0;
+                window = manager.minWindow;
+                prefetchOffset = offset;
+            } else {
+                sequentialCount++;
+            }
+            int read = readFromSegments(data, offset);
+            if (read > 0) {
+                ReadManagerImpl.READ_AHEAD_HIT_COUNTER.inc();
+                ReadManagerImpl.READ_BYTES_COUNTER.labels("read_ahead").inc(read);
+            } else {
+                if (sequentialCount > 0) {
+                    ReadManagerImpl.READ_AHEAD_MISS_COUNTER.inc();
+                }
+                read = manager.readThrough(fileId, data, offset);
+            }
+            if (read > 0) {
+                expectedOffset = offset + read;
+                if (sequentialCount >= manager.sequentialThreshold) {
+                    prefetch();
+                }
+            } else {
+                expectedOffset = -1;
+            }
+            return read;
+        }
+
+        private int readFromSegments(ByteBuffer data, long offset) throws IOException {
+            int read = 0;
+            Segment segment;
+            while (data.hasRemaining() && (segment = segments.peekFirst()) != null) {
+                long position = offset + read;
+                int length = segment.await();
+                if (length < 0 || position < segment.offset) {
+                    // 预读失败或者数据段不连续
+                    discard();
+                    break;
+                }
+                long end = segment.offset + length;
+                if (position < end) {
+                    int n = (int) Math.min(data.remaining(), end - position);
+                    data.put(segment.buffer.slice((int) (position - segment.offset), n));
+                    segment.consumed += n;
+                    read += n;
+                    position += n;
+                }
+                if (position >= end) {
+                    segments.pollFirst();
+                    segment.release();
+                    if (length < segment.capacity) {
+                        // 预读数据不满说明已到达文件末尾
+                        fileLength = end;
+                        discard();
+                        break;
+                    }
+                }
+            }
+            return read;
+        }
+
+        /**
+         * 扩大预读窗口并异步预读窗口内尚未预读的数据
+         */
+        private void prefetch() {
+            if (closed) {
+                return;
+            }
+            window = Math.min(window << 1, manager.maxWindow);
+            prefetchOffset = Math.max(prefetchOffset, expectedOffset);
+            long limit = Math.min(expectedOffset + window, fileLength);
+            while (prefetchOffset < limit) {
+                int size = (int) Math.min(manager.chunkSize, limit - prefetchOffset);
+                if (!manager.tryAcquire(size)) {
+                    // 超出全局预读内存限制
+                    break;
+                }
+                ByteBuffer buffer = BYTE_BUFFER_POOL.take(size).limit(size);
+                segments.addLast(new Segment(prefetchOffset, size, buffer,
+                        manager.prefetch(fileId, prefetchOffset, buffer)));
+                prefetchOffset += size;
+            }
+        }
+
+        private void discard() {
+            Segment segment;
+            while ((segment = segments.pollFirst()) != null) {
+                segment.release();
+            }
+            prefetchOffset = expectedOffset;
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                discard();
+                expectedOffset = -1;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class Segment {
+        private final long offset;
+        private final int capacity;
+        private final ByteBuffer buffer;
+        private final CompletableFuture<Integer> future;
+        private volatile int consumed;
+
+        private Segment(long offset, int capacity, ByteBuffer buffer,
+                        CompletableFuture<Integer> future) {
+            this.offset = offset;
+            this.capacity = capacity;
+            this.buffer = buffer;
+            this.future = future;
+        }
+
+        private int await() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("read ahead interrupted");
+            } catch (ExecutionException e) {
+                LOG.warn("Read ahead file {} from offset {} error", fileId, offset, e.getCause());
+                return -1;
+            }
+        }
+
+        /**
+         * 预读完成后归还缓冲区，未被读取的数据计入浪费
+         */
+        private void release() {
+            future.whenComplete((read, e) -> {
+                if (read != null && read > consumed) {
+                    ReadManagerImpl.READ_AHEAD_WASTED_BYTES_COUNTER.inc(read - consumed);
+                }
+                BYTE_BUFFER_POOL.give(buffer);
+                manager.release(capacity);
+            });
+        }
+    }
+}
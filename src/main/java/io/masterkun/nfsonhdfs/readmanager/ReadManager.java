@@ -0,0 +1,34 @@
+package io.masterkun.nfsonhdfs.readmanager;
+
+import io.masterkun.nfsonhdfs.cache.StatHolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ReadManager {
+
+    /**
+     * 读取文件数据
+     *
+     * @param fileId 文件id
+     * @param data   数据缓冲区
+     * @param offset 读取偏移量
+     * @return 读取数据大小，到达文件末尾返回-1
+     */
+    int read(long fileId, ByteBuffer data, long offset) throws IOException;
+
+    /**
+     * 文件被修改后丢弃已缓存以及已预读的数据
+     *
+     * @param fileId 文件id
+     */
+    void invalidate(long fileId);
+
+    /**
+     * 使用文件最新的状态校验缓存数据，文件被其他客户端修改后丢弃缓存数据
+     *
+     * @param fileId     文件id
+     * @param statHolder 文件状态
+     */
+    void validate(long fileId, StatHolder statHolder);
+}
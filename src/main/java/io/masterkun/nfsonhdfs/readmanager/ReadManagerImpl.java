@@ -0,0 +1,184 @@
+package io.masterkun.nfsonhdfs.readmanager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.masterkun.nfsonhdfs.cache.StatHolder;
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.masterkun.nfsonhdfs.vfs.DfsClientCache;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReadManagerImpl implements ReadManager {
+    static final Counter READ_AHEAD_HIT_COUNTER = Counter.build()
+            .name("read_ahead_hit")
+            .help("Read Ahead Hit")
+            .register();
+    static final Counter READ_AHEAD_MISS_COUNTER = Counter.build()
+            .name("read_ahead_miss")
+            .help("Read Ahead Miss")
+            .register();
+    static final Counter READ_AHEAD_WASTED_BYTES_COUNTER = Counter.build()
+            .name("read_ahead_wasted_bytes")
+            .help("Read Ahead Bytes Discarded Before Read")
+            .register();
+    static final Counter READ_BYTES_COUNTER = Counter.build()
+            .name("read_bytes")
+            .labelNames("source")
+            .help("Read Bytes By Source, bytes not from hdfs are copied from intermediate buffers")
+            .register();
+    private static final Gauge READ_AHEAD_BYTES_GAUGE = Gauge.build()
+            .name("read_ahead_bytes")
+            .help("Read Ahead Buffered Bytes")
+            .register();
+    private static final Counter.Child READ_BYTES_HDFS = READ_BYTES_COUNTER.labels("hdfs");
+    final int sequentialThreshold;
+    final int minWindow;
+    final int maxWindow;
+    final int chunkSize;
+    final int maxStreams;
+    private final DfsClientCache dfsClientCache;
+    private final boolean readAheadEnabled;
+    private final long readAheadBudget;
+    /**
+     * 预读线程池，只在开启预读时创建
+     */
+    private final ExecutorService readAheadService;
+    /**
+     * 所有文件预读占用的内存大小
+     */
+    private final AtomicLong readAheadBytes = new AtomicLong();
+    private final Cache<Long, ReadAheadContext> contexts;
+    private final BlockCache blockCache;
+
+    public ReadManagerImpl(DfsClientCache dfsClientCache) {
+        this.dfsClientCache = dfsClientCache;
+        AppConfig.ReadManagerConfig config = Utils.getServerConfig().getVfs().getReadManager();
+        this.readAheadEnabled = config.isReadAheadEnabled();
+        this.readAheadBudget = config.getReadAheadBudget();
+        this.readAheadService = readAheadEnabled ? Executors.newFixedThreadPool(
+                config.getReadAheadThreadNum(),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("read-ahead-%d")
+                        .build()) : null;
+        this.sequentialThreshold = config.getReadAheadSequentialThreshold();
+        this.minWindow = config.getReadAheadMinWindow();
+        this.maxWindow = Math.max(config.getReadAheadMaxWindow(), minWindow);
+        this.chunkSize = config.getReadAheadChunkSize();
+        this.maxStreams = Math.max(1, config.getReadAheadMaxStreams());
+        this.contexts = Caffeine.from(config.getReadAheadContextCacheSpec())
+                .removalListener((RemovalListener<Long, ReadAheadContext>) (key, value, cause) -> {
+                    if (value != null) {
+                        value.close();
+                    }
+                })
+                .recordStats()
+                .build();
+        Utils.getCacheMetricsCollector().addCache("read_ahead_context_cache", contexts);
+        this.blockCache = config.isBlockCacheEnabled() ?
+                new BlockCache(config.getBlockCacheCapacity(), config.getBlockCacheChunkSize()) :
+                null;
+    }
+
+    @Override
+    public int read(long fileId, ByteBuffer data, long offset) throws IOException {
+        if (!readAheadEnabled) {
+            return readThrough(fileId, data, offset);
+        }
+        ReadAheadContext context = contexts.get(fileId, key -> new ReadAheadContext(key, this));
+        return context.read(data, offset);
+    }
+
+    @Override
+    public void invalidate(long fileId) {
+        contexts.invalidate(fileId);
+        if (blockCache != null) {
+            blockCache.invalidate(fileId);
+        }
+    }
+
+    @Override
+    public void validate(long fileId, StatHolder statHolder) {
+        if (blockCache != null && blockCache.validate(fileId, statHolder)) {
+            contexts.invalidate(fileId);
+        }
+    }
+
+    /**
+     * 不经过预读读取，开启数据块缓存时优先从数据块缓存读取
+     */
+    int readThrough(long fileId, ByteBuffer data, long offset) throws IOException {
+        if (blockCache != null) {
+            return blockCache.read(fileId, offset, data, this::pread);
+        }
+        // 直接读入调用方的缓冲区，没有中间拷贝
+        int read = dfsClientCache.getDfsInputStream(fileId).read(offset, data);
+        if (read > 0) {
+            READ_BYTES_HDFS.inc(read);
+        }
+        return read;
+    }
+
+    private int positionalRead(long fileId, long position, ByteBuffer data) throws IOException {
+        if (blockCache != null) {
+            return blockCache.read(fileId, position, data, this::pread);
+        }
+        return pread(fileId, position, data);
+    }
+
+    private int pread(long fileId, long position, ByteBuffer data) throws IOException {
+        return dfsClientCache.getDfsInputStream(fileId).pread(position, data);
+    }
+
+    /**
+     * 异步预读数据直到填满缓冲区或者到达文件末尾
+     *
+     * @return 异步返回读取的数据大小
+     */
+    CompletableFuture<Integer> prefetch(long fileId, long offset, ByteBuffer data) {
+        CompletableFuture<Integer> f = new CompletableFuture<>();
+        readAheadService.execute(() -> {
+            try {
+                int total = 0;
+                while (data.hasRemaining()) {
+                    int read = positionalRead(fileId, offset + total, data);
+                    if (read <= 0) {
+                        break;
+                    }
+                    total += read;
+                }
+                f.complete(total);
+            } catch (Throwable e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    boolean tryAcquire(int bytes) {
+        long current;
+        do {
+            current = readAheadBytes.get();
+            if (current + bytes > readAheadBudget) {
+                return false;
+            }
+        } while (!readAheadBytes.compareAndSet(current, current + bytes));
+        READ_AHEAD_BYTES_GAUGE.inc(bytes);
+        return true;
+    }
+
+    void release(int bytes) {
+        readAheadBytes.getAndAdd(-bytes);
+        READ_AHEAD_BYTES_GAUGE.dec(bytes);
+    }
+}
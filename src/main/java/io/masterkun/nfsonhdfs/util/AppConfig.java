@@ -6,6 +6,7 @@ import org.dcache.oncrpc4j.rpc.IoStrategy;
 import org.dcache.oncrpc4j.rpc.MemoryAllocator;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -49,9 +50,17 @@ public class AppConfig {
     @Data
     public static class VfsConf {
         private String inputStreamCacheSpec = "maximumSize=128,expireAfterAccess=15m";
+        private int inputStreamStripes = 4;
+        private String locatedBlocksCacheSpec = "maximumSize=8192,expireAfterWrite=10m";
+        private boolean shortCircuitRead = false;
+        private String domainSocketPath = "/var/lib/hadoop-hdfs/dn_socket";
+        private int hedgedReadThreadNum = 0;
+        private long hedgedReadThresholdMs = 500;
         private String dfsClientCacheSpec = "maximumSize=128,expireAfterAccess=24h";
         private VfsCacheConfig vfsCache = new VfsCacheConfig();
         private WriteManagerConfig writeManager = new WriteManagerConfig();
+        private ReadManagerConfig readManager = new ReadManagerConfig();
+        private SmallFileCacheConfig smallFileCache = new SmallFileCacheConfig();
         private IdMappingConfig idMapping = new IdMappingConfig();
         private boolean hosted = false;
     }
@@ -72,17 +81,64 @@ public class AppConfig {
 
     @Data
     public static class WriteManagerConfig {
-        private int writeHighWatermark = 1024 * 1024 * 8;
-        private int writeLowWatermark = 1024 * 1024;
-        private int writeThreadMaxNum = 100;
-        private int writeThreadInitNum = 10;
+        private long writeBudgetBytes = 1024L * 1024 * 1024;
+        private long writeBudgetPerPrincipalBytes = 1024 * 1024 * 256;
+        private int writeWorkerNum = Runtime.getRuntime().availableProcessors() * 2;
+        private boolean writeVirtualThread = false;
+        private boolean fairSchedulingEnabled = false;
+        private long fairSchedulingQuantumBytes = 1024 * 1024;
+        private long fairSchedulingInFlightBytes = 1024 * 1024 * 64;
+        private Map<String, Integer> fairSchedulingWeights = new HashMap<>();
+        private int fairSchedulingDefaultWeight = 1;
         private int writeWaitTimeoutMs = 10 * 1000;
         private int commitIntervalMs = 1000;
+        private int commitLingerMs = 0;
         private int commitWaitTimeoutMs = 30 * 1000;
         private boolean autoCommit = false;
         private boolean contextCloseOnFinalCommit = true;
         private WriteCommitPolicy writeCommitPolicy = WriteCommitPolicy.HFLUSH;
         private int writeBufferLength = 65536;
+        private boolean bufferLeakDetection = false;
+        private int writeCoalesceBytes = 1024 * 1024;
+        private int checksumRingSize = 1024;
+        private boolean spillEnabled = false;
+        private String spillDir = "/tmp/nfs-on-hdfs/spill";
+        private int spillSegmentBytes = 1024 * 1024 * 64;
+        private long spillContextThreshold = 1024 * 1024 * 64;
+        private long spillGlobalThreshold = 1024 * 1024 * 512;
+        private boolean partWriteEnabled = false;
+        private long partWriteMinGap = 1024 * 1024 * 128;
+        private int partWriteMaxNum = 16;
+        private int sparseGapGraceMs = 0;
+        private boolean warmStreamEnabled = false;
+        private String warmStreamCacheSpec = "maximumSize=64,expireAfterWrite=2m";
+        private boolean smallFileWriteEnabled = false;
+        private int smallFileWriteMaxBytes = 1024 * 64;
+        private long pendingReadMaxBytes = 0;
+    }
+
+    @Data
+    public static class SmallFileCacheConfig {
+        private boolean enabled = false;
+        private int maxFileSize = 1024 * 1024;
+        private long capacity = 1024 * 1024 * 256;
+        private long expireAfterAccessMs = 1000 * 60 * 10;
+    }
+
+    @Data
+    public static class ReadManagerConfig {
+        private boolean readAheadEnabled = false;
+        private int readAheadSequentialThreshold = 2;
+        private int readAheadMinWindow = 1024 * 1024;
+        private int readAheadMaxWindow = 1024 * 1024 * 16;
+        private int readAheadChunkSize = 1024 * 1024;
+        private int readAheadMaxStreams = 4;
+        private long readAheadBudget = 1024 * 1024 * 256;
+        private int readAheadThreadNum = 8;
+        private String readAheadContextCacheSpec = "maximumSize=1024,expireAfterAccess=1m";
+        private boolean blockCacheEnabled = false;
+        private long blockCacheCapacity = 1024 * 1024 * 512;
+        private int blockCacheChunkSize = 1024 * 1024;
     }
 
     @Data
@@ -101,6 +157,7 @@ public class AppConfig {
         private Boolean subjectPropagation;
         private MemoryAllocator memoryAllocator = MemoryAllocator.POOLED_DIRECT;
         private boolean cliEventEnabled = false;
+        private boolean virtualThread = false;
     }
 
     @Data
@@ -32,8 +32,11 @@ import org.dcache.nfs.vfs.Inode;
 import org.dcache.nfs.vfs.Stat;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.nio.file.FileSystemException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static io.masterkun.nfsonhdfs.util.Constants.INODEID_PATH_PREFIX;
 
@@ -149,6 +152,20 @@ public class Utils {
         return INODEID_PATH_PREFIX + parentId + "/" + fileName;
     }
 
+    /**
+     * 创建每个任务一个虚拟线程的线程池，虚拟线程需要Java 21以上的运行环境，编译目标为Java 17所以通过反射创建
+     *
+     * @return 线程池，运行环境不支持虚拟线程时返回空
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     public static synchronized void initializeMetricsExport() {
         if (!initialized) {
             initialized = true;
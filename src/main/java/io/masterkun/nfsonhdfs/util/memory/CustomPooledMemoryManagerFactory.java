@@ -66,7 +66,16 @@ public class CustomPooledMemoryManagerFactory implements DefaultMemoryManagerFac
 
         @Override
         public ByteBuffer reallocateByteBuffer(ByteBuffer oldByteBuffer, int newSize) {
-            return null;
+            if (oldByteBuffer.capacity() >= newSize) {
+                return oldByteBuffer;
+            }
+            ByteBuffer newByteBuffer = allocateByteBuffer(newSize);
+            oldByteBuffer.flip();
+            newByteBuffer.put(oldByteBuffer);
+            if (oldByteBuffer.isDirect()) {
+                releaseByteBuffer(oldByteBuffer);
+            }
+            return newByteBuffer;
         }
 
         @Override
@@ -0,0 +1,163 @@
+package io.masterkun.nfsonhdfs.util.memory;
+
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 引用计数缓冲区，从直接内存池申请的缓冲区在引用计数归零时归还内存池。切片与原缓冲区共享数据和引用计数，
+ * 不需要复制数据，切片不增加引用计数，使用期间不能超过原缓冲区的生命周期。
+ * <p>
+ * 开启泄漏检测时记录每个缓冲区的申请位置，缓冲区被回收时引用计数仍未归零则输出申请位置并回收内存，
+ * 只用于调试
+ */
+public final class RefCountedBuffer {
+    private static final Logger LOG = LoggerFactory.getLogger(RefCountedBuffer.class);
+    private static final Counter BUFFER_LEAK_COUNTER = Counter.build()
+            .name("buffer_leak")
+            .help("Leaked Ref Counted Buffers")
+            .register();
+    private static final DirectByteBufferPool BYTE_BUFFER_POOL =
+            CustomPooledMemoryManagerFactory.BYTE_BUFFER_POOL;
+    private static final boolean LEAK_DETECTION = Utils.getServerConfig()
+            .getVfs()
+            .getWriteManager()
+            .isBufferLeakDetection();
+    private static final Cleaner CLEANER = LEAK_DETECTION ? Cleaner.create() : null;
+
+    private final State state;
+    /**
+     * 当前缓冲区可访问的数据视图，下标0为数据起始位置，只使用绝对位置访问
+     */
+    private final ByteBuffer data;
+    /**
+     * 切片引用原缓冲区，保证切片使用期间原缓冲区不会被泄漏检测回收，原缓冲区为空
+     */
+    private final RefCountedBuffer parent;
+
+    private RefCountedBuffer(State state, ByteBuffer data, RefCountedBuffer parent) {
+        this.state = state;
+        this.data = data;
+        this.parent = parent;
+    }
+
+    /**
+     * 从直接内存池申请缓冲区，引用计数为1
+     */
+    public static RefCountedBuffer allocate(int length) {
+        ByteBuffer buffer = BYTE_BUFFER_POOL.take(length);
+        State state = new State(buffer, true);
+        RefCountedBuffer refCountedBuffer = new RefCountedBuffer(state, buffer.slice(0, length),
+                null);
+        if (LEAK_DETECTION) {
+            state.trace = new Throwable("buffer allocated");
+            CLEANER.register(refCountedBuffer, state);
+        }
+        return refCountedBuffer;
+    }
+
+    /**
+     * 包装堆内存数组，不复制数据，释放时不归还内存池
+     */
+    public static RefCountedBuffer wrap(byte[] array, int offset, int length) {
+        return new RefCountedBuffer(new State(null, false), ByteBuffer.wrap(array, offset, length)
+                .slice(), null);
+    }
+
+    public int length() {
+        return data.capacity();
+    }
+
+    public int refCnt() {
+        return state.refCnt.get();
+    }
+
+    /**
+     * 数据视图，返回值与缓冲区共享数据，position为0，limit为数据长度
+     */
+    public ByteBuffer nioBuffer() {
+        return data.duplicate();
+    }
+
+    public RefCountedBuffer retain() {
+        int refCnt;
+        do {
+            refCnt = state.refCnt.get();
+            if (refCnt <= 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+        } while (!state.refCnt.compareAndSet(refCnt, refCnt + 1));
+        return this;
+    }
+
+    /**
+     * 减少引用计数，归零时归还内存池
+     *
+     * @return 本次释放后引用计数是否归零
+     */
+    public boolean release() {
+        int refCnt = state.refCnt.decrementAndGet();
+        if (refCnt == 0) {
+            state.free();
+            return true;
+        } else if (refCnt < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+        return false;
+    }
+
+    /**
+     * 共享数据和引用计数的切片，不增加引用计数，生命周期不超过原缓冲区
+     */
+    public RefCountedBuffer slice(int index, int length) {
+        return new RefCountedBuffer(state, data.slice(index, length),
+                parent == null ? this : parent);
+    }
+
+    @Override
+    public String toString() {
+        return "RefCountedBuffer{" +
+                "length=" + length() +
+                ", refCnt=" + refCnt() +
+                ", direct=" + data.isDirect() +
+                '}';
+    }
+
+    /**
+     * 缓冲区的共享状态，不能引用缓冲区本身，否则泄漏检测无法触发
+     */
+    private static final class State implements Runnable {
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+        private final ByteBuffer root;
+        private final boolean pooled;
+        private Throwable trace;
+
+        private State(ByteBuffer root, boolean pooled) {
+            this.root = root;
+            this.pooled = pooled;
+        }
+
+        private void free() {
+            if (pooled) {
+                BYTE_BUFFER_POOL.give(root);
+            }
+        }
+
+        /**
+         * 缓冲区被回收时调用
+         */
+        @Override
+        public void run() {
+            if (refCnt.getAndSet(0) > 0) {
+                BUFFER_LEAK_COUNTER.inc();
+                LOG.error("RefCountedBuffer leaked, reclaim it", trace);
+                free();
+            }
+        }
+    }
+}
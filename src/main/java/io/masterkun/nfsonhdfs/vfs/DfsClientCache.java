@@ -2,7 +2,6 @@ package io.masterkun.nfsonhdfs.vfs;
 
 import io.masterkun.nfsonhdfs.CallContext;
 import org.apache.hadoop.hdfs.DFSClient;
-import org.apache.hadoop.hdfs.DFSInputStream;
 
 import java.io.IOException;
 
@@ -30,12 +29,12 @@ public interface DfsClientCache {
     DFSClient getSuperUserDFSClient() throws IOException;
 
     /**
-     * 获取租户的文件输入流，需要从{@link CallContext}中获取租户
+     * 获取文件输入流，同一文件的并发读取者各自使用独立的输入流
      *
      * @param fileId 文件id
      * @return 文件输入流
      */
-    DFSInputStream getDfsInputStream(long fileId) throws IOException;
+    StripedDfsInputStream getDfsInputStream(long fileId) throws IOException;
 
     /**
      * 删除文件输入流缓存，需要从{@link CallContext}中获取租户
@@ -44,4 +43,20 @@ public interface DfsClientCache {
      */
     void invalidateInputStream(long fileId);
 
+    /**
+     * 使用文件最新的长度校验输入流缓存，文件变长或者正在写入的文件读到过打开时长度之后的数据后关闭输入流，
+     * 下次读取时重新打开
+     *
+     * @param fileId     文件id
+     * @param fileLength 文件长度
+     */
+    void validateInputStream(long fileId, long fileLength);
+
+    /**
+     * 删除数据块位置缓存，文件写入、追加、截断后调用
+     *
+     * @param fileId 文件id
+     */
+    void invalidateLocatedBlocks(long fileId);
+
 }
@@ -1,13 +1,22 @@
 package io.masterkun.nfsonhdfs.vfs;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.github.benmanes.caffeine.cache.RemovalListener;
 import io.masterkun.nfsonhdfs.CallContext;
+import io.masterkun.nfsonhdfs.util.AppConfig;
 import io.masterkun.nfsonhdfs.util.Utils;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DFSHedgedReadMetrics;
 import org.apache.hadoop.hdfs.DFSInputStream;
+import org.apache.hadoop.hdfs.DFSInputStreamHelper;
+import org.apache.hadoop.hdfs.client.HdfsClientConfigKeys;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
@@ -20,20 +29,42 @@ import java.util.concurrent.CompletionException;
 
 public class DfsClientCacheImpl implements DfsClientCache {
     private static final Logger LOG = LoggerFactory.getLogger(DfsClientCacheImpl.class);
+    private static final Counter INPUT_STREAM_OPEN_COUNTER = Counter.build()
+            .name("input_stream_open")
+            .help("DfsInputStream Open")
+            .register();
+    private static final Gauge HEDGED_READ_OPS_GAUGE = Gauge.build()
+            .name("hedged_read_ops")
+            .help("Hedged Read Ops")
+            .register();
+    private static final Gauge HEDGED_READ_WINS_GAUGE = Gauge.build()
+            .name("hedged_read_wins")
+            .help("Hedged Read Wins")
+            .register();
     private final LoadingCache<String, DFSClient> dfsClientCache;
-    private final LoadingCache<Long, DFSInputStream> inputStreamCache;
+    private final LoadingCache<Long, StripedDfsInputStream> inputStreamCache;
+    /**
+     * 已完成文件的数据块位置，重新打开输入流时不再请求NameNode
+     */
+    private final Cache<Long, LocatedBlocks> locatedBlocksCache;
 
     public DfsClientCacheImpl() throws IOException {
         this(
                 Utils.getServerConfig().getRootDir(),
                 Utils.getServerConfig().getVfs().getDfsClientCacheSpec(),
-                Utils.getServerConfig().getVfs().getInputStreamCacheSpec()
+                Utils.getServerConfig().getVfs().getInputStreamCacheSpec(),
+                Utils.getServerConfig().getVfs().getInputStreamStripes(),
+                Utils.getServerConfig().getVfs().getLocatedBlocksCacheSpec()
         );
     }
 
     public DfsClientCacheImpl(String rootPath, String dfsClientCacheSpec,
-                              String inputStreamCacheSpec) throws IOException {
+                              String inputStreamCacheSpec, int inputStreamStripes,
+                              String locatedBlocksCacheSpec) throws IOException {
         URI resolvedURI = Utils.getResolvedURI(rootPath);
+        Configuration conf = createDfsClientConf();
+        // hedged read只对pread生效，开启后输入流全部使用pread读取
+        boolean hedgedRead = conf.getInt(HdfsClientConfigKeys.HedgedRead.THREADPOOL_SIZE_KEY, 0) > 0;
         this.dfsClientCache = Caffeine.from(dfsClientCacheSpec)
                 .removalListener((RemovalListener<String, DFSClient>) (key, value, cause) -> {
                     if (value != null) {
@@ -52,29 +83,100 @@ public class DfsClientCacheImpl implements DfsClientCache {
                         UserGroupInformation proxyUser =
                                 UserGroupInformation.createProxyUser(principal,
                                         UserGroupInformation.getCurrentUser());
-                        return proxyUser.doAs((PrivilegedExceptionAction<DFSClient>) () -> new DFSClient(resolvedURI, Utils.getHadoopConf()));
+                        return proxyUser.doAs((PrivilegedExceptionAction<DFSClient>) () -> new DFSClient(resolvedURI, conf));
                     }
                 });
         Utils.getCacheMetricsCollector().addCache("dfs_client_cache", dfsClientCache);
+        this.locatedBlocksCache = Caffeine.from(locatedBlocksCacheSpec)
+                .recordStats()
+                .build();
+        Utils.getCacheMetricsCollector().addCache("located_blocks_cache", locatedBlocksCache);
         this.inputStreamCache = Caffeine.from(inputStreamCacheSpec)
-                .removalListener((RemovalListener<Long, DFSInputStream>) (key, value, cause) -> {
+                .removalListener((RemovalListener<Long, StripedDfsInputStream>) (key, value, cause) -> {
                     if (value != null) {
-                        try {
-                            LOG.info("Close DfsInputStream({})", key);
-                            value.close();
-                        } catch (IOException e) {
-                            LOG.error("Close DfsInputStream({}) error", key, e);
-                        }
+                        LOG.info("Close DfsInputStream({})", key);
+                        value.close();
                     }
                 })
                 .recordStats()
-                .build(new CacheLoader<Long, DFSInputStream>() {
+                .build(new CacheLoader<Long, StripedDfsInputStream>() {
                     @Override
-                    public @Nullable DFSInputStream load(Long key) throws Exception {
-                        return getSuperUserDFSClient().open(Utils.getFileIdPath(key));
+                    public @Nullable StripedDfsInputStream load(Long key) throws Exception {
+                        String fileIdPath = Utils.getFileIdPath(key);
+                        return new StripedDfsInputStream(key, inputStreamStripes, hedgedRead,
+                                () -> {
+                                    INPUT_STREAM_OPEN_COUNTER.inc();
+                                    return openInputStream(key, fileIdPath);
+                                });
                     }
                 });
-        Utils.getCacheMetricsCollector().addCache("input_stream_cache", dfsClientCache);
+        Utils.getCacheMetricsCollector().addCache("input_stream_cache", inputStreamCache);
+        if (hedgedRead) {
+            HEDGED_READ_OPS_GAUGE.setChild(new Gauge.Child() {
+                @Override
+                public double get() {
+                    DFSHedgedReadMetrics metrics = getHedgedReadMetrics();
+                    return metrics == null ? 0 : metrics.getHedgedReadOps();
+                }
+            });
+            HEDGED_READ_WINS_GAUGE.setChild(new Gauge.Child() {
+                @Override
+                public double get() {
+                    DFSHedgedReadMetrics metrics = getHedgedReadMetrics();
+                    return metrics == null ? 0 : metrics.getHedgedReadWins();
+                }
+            });
+        }
+    }
+
+    /**
+     * 创建DFSClient使用的配置，开启短路读时数据直接从本地数据块文件读入缓冲区，不经过DataNode的网络传输，
+     * 开启hedged read时读取超过阈值未返回则向其他DataNode发起读取，使用先返回的结果
+     */
+    private static Configuration createDfsClientConf() {
+        Configuration conf = new Configuration(Utils.getHadoopConf());
+        AppConfig.VfsConf vfsConf = Utils.getServerConfig().getVfs();
+        if (vfsConf.isShortCircuitRead()) {
+            conf.setBoolean(HdfsClientConfigKeys.Read.ShortCircuit.KEY, true);
+            conf.set(HdfsClientConfigKeys.DFS_DOMAIN_SOCKET_PATH_KEY, vfsConf.getDomainSocketPath());
+        }
+        if (vfsConf.getHedgedReadThreadNum() > 0) {
+            conf.setInt(HdfsClientConfigKeys.HedgedRead.THREADPOOL_SIZE_KEY,
+                    vfsConf.getHedgedReadThreadNum());
+            conf.setLong(HdfsClientConfigKeys.HedgedRead.THRESHOLD_MILLIS_KEY,
+                    vfsConf.getHedgedReadThresholdMs());
+        }
+        return conf;
+    }
+
+    /**
+     * 打开输入流，优先使用缓存的数据块位置，只缓存已完成文件的数据块位置
+     */
+    private DFSInputStream openInputStream(long fileId, String fileIdPath) throws IOException {
+        DFSClient dfsClient = getSuperUserDFSClient();
+        LocatedBlocks locatedBlocks = locatedBlocksCache.getIfPresent(fileId);
+        if (locatedBlocks == null) {
+            locatedBlocks = dfsClient.getLocatedBlocks(fileIdPath, 0);
+            if (locatedBlocks == null) {
+                throw new IOException("Cannot open filename " + fileIdPath);
+            }
+            if (!locatedBlocks.isUnderConstruction()) {
+                locatedBlocksCache.put(fileId, locatedBlocks);
+            }
+        }
+        return DFSInputStreamHelper.open(dfsClient, fileIdPath, locatedBlocks);
+    }
+
+    /**
+     * 所有DFSClient共享同一个hedged read统计
+     */
+    private DFSHedgedReadMetrics getHedgedReadMetrics() {
+        try {
+            return getSuperUserDFSClient().getHedgedReadMetrics();
+        } catch (IOException e) {
+            LOG.warn("Get hedged read metrics error", e);
+            return null;
+        }
     }
 
     @Override
@@ -108,7 +210,7 @@ public class DfsClientCacheImpl implements DfsClientCache {
     }
 
     @Override
-    public DFSInputStream getDfsInputStream(long fileId) throws IOException {
+    public StripedDfsInputStream getDfsInputStream(long fileId) throws IOException {
         try {
             return inputStreamCache.get(fileId);
         } catch (CompletionException e) {
@@ -124,4 +226,20 @@ public class DfsClientCacheImpl implements DfsClientCache {
     public void invalidateInputStream(long fileId) {
         inputStreamCache.invalidate(fileId);
     }
+
+    @Override
+    public void validateInputStream(long fileId, long fileLength) {
+        StripedDfsInputStream in = inputStreamCache.getIfPresent(fileId);
+        // 正在写入的文件hflush后NameNode上的文件长度不变，读到过文件长度之后的数据时同样重新打开
+        if (in != null && (in.getFileLength() < fileLength || in.isStale())) {
+            LOG.debug("Close DfsInputStream({}) because file length changed", fileId);
+            locatedBlocksCache.invalidate(fileId);
+            inputStreamCache.asMap().remove(fileId, in);
+        }
+    }
+
+    @Override
+    public void invalidateLocatedBlocks(long fileId) {
+        locatedBlocksCache.invalidate(fileId);
+    }
 }
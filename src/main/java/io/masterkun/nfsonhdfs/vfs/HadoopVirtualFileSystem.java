@@ -5,16 +5,18 @@ import com.google.common.primitives.Longs;
 import io.masterkun.nfsonhdfs.cache.CacheKey;
 import io.masterkun.nfsonhdfs.cache.CacheLoaderHelper;
 import io.masterkun.nfsonhdfs.cache.StatHolder;
+import io.masterkun.nfsonhdfs.readmanager.ReadManager;
+import io.masterkun.nfsonhdfs.readmanager.ReadManagerImpl;
 import io.masterkun.nfsonhdfs.util.Utils;
 import io.masterkun.nfsonhdfs.writemanager.WriteManager;
 import io.masterkun.nfsonhdfs.writemanager.WriteManagerImpl;
+import io.prometheus.client.Histogram;
 import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FsStatus;
 import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.XAttrSetFlag;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.DFSClient;
-import org.apache.hadoop.hdfs.DFSInputStream;
 import org.apache.hadoop.hdfs.protocol.DirectoryListing;
 import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
 import org.apache.hadoop.ipc.RemoteException;
@@ -42,9 +44,16 @@ import java.util.TreeSet;
 
 public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHelper {
     private static final Logger LOG = LoggerFactory.getLogger(HadoopVirtualFileSystem.class);
+    private static final Histogram READ_LATENCY_HISTOGRAM = Histogram.build()
+            .name("read_latency_seconds")
+            .labelNames("export")
+            .buckets(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30)
+            .help("Read Latency In Seconds")
+            .register();
     private final long rootFileId;
     private final DfsClientCache dfsClientCache;
     private final WriteManager writeManager;
+    private final ReadManager readManager;
 
     public HadoopVirtualFileSystem(URI export) throws IOException {
         this(export, new DfsClientCacheImpl());
@@ -56,6 +65,7 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
                 .getFileInfo(export.getPath())
                 .getFileId();
         this.writeManager = new WriteManagerImpl(dfsClientCache);
+        this.readManager = new ReadManagerImpl(dfsClientCache);
     }
 
     @Override
@@ -187,7 +197,12 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
                 status.getAccessTime());
         stat.setMTime(status.getModificationTime());
         stat.setCTime(status.getModificationTime());
-        return new StatHolder(stat);
+        StatHolder statHolder = new StatHolder(stat);
+        if (status.isFile()) {
+            readManager.validate(status.getFileId(), statHolder);
+            dfsClientCache.validateInputStream(status.getFileId(), status.getLen());
+        }
+        return statHolder;
     }
 
     @Override
@@ -261,15 +276,9 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
             LOG.debug("vfs.read(inode={}, data=byte[], offset={}, count={})", fileId, offset,
                     count);
         }
-        DFSInputStream open = dfsClientCache.getDfsInputStream(fileId);
-        int read = open.getPos() == offset ?
-                open.read(data, 0, count) :
-                open.read(offset, data, 0, count);
-        if (read == -1) {
-            LOG.debug("vfs.read(inode={}) reach end, close inputStream", fileId);
-            dfsClientCache.invalidateInputStream(fileId);
-        }
-        return read;
+        // 包装为ByteBuffer后与ByteBuffer读取共用同一读取路径，直接读入调用方的数组
+        // 到达文件末尾时保留输入流缓存，文件变长后由getattr校验关闭
+        return doRead(inode, fileId, ByteBuffer.wrap(data, 0, count), offset);
     }
 
     @Override
@@ -278,16 +287,21 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
         if (LOG.isDebugEnabled()) {
             LOG.debug("vfs.read(inode={}, data=ByteBuffer, offset={})", fileId, offset);
         }
-        DFSInputStream open = dfsClientCache.getDfsInputStream(fileId);
-        int read = open.getPos() == offset ?
-                open.read(data) :
-                open.read(offset, data);
-        if (read == -1) {
-            LOG.debug("vfs.read(inode={}) reach end, close inputStream", fileId);
-            dfsClientCache.invalidateInputStream(fileId);
-            return 0;
+        int read = doRead(inode, fileId, data, offset);
+        return read == -1 ? 0 : read;
+    }
+
+    private int doRead(Inode inode, long fileId, ByteBuffer data, long offset) throws IOException {
+        try (Histogram.Timer ignored = READ_LATENCY_HISTOGRAM
+                .labels(Integer.toString(inode.exportIndex()))
+                .startTimer()) {
+            // 文件正在写入时优先读取尚未对读取可见的写入数据
+            int read = writeManager.readPending(fileId, data, offset);
+            if (read > 0) {
+                return read;
+            }
+            return readManager.read(fileId, data, offset);
         }
-        return read;
     }
 
     @Override
@@ -298,8 +312,10 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
             LOG.debug("vfs.write(inode={}, data=byte[], offset={}, count={}, stabilityLevel={})",
                     fileId, offset, count, stabilityLevel);
         }
-        writeManager.handleWrite(fileId, data, offset, count);
-        return new WriteResult(StabilityLevel.UNSTABLE, count);
+        readManager.invalidate(fileId);
+        // 同步写入时与写入一起提交，返回实际达到的稳定级别，客户端不需要再发送COMMIT
+        return new WriteResult(writeManager.handleWrite(fileId, data, offset, count,
+                stabilityLevel), count);
     }
 
     @Override
@@ -311,8 +327,9 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
                     offset, stabilityLevel);
         }
         int count = data.remaining();
-        writeManager.handleWrite(fileId, data, offset);
-        return new WriteResult(StabilityLevel.UNSTABLE, count);
+        readManager.invalidate(fileId);
+        return new WriteResult(writeManager.handleWrite(fileId, data, offset, stabilityLevel),
+                count);
     }
 
     @Override
@@ -322,6 +339,11 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
             LOG.debug("vfs.commit(inode={}, offset={}, count={})", fileId, offset, count);
         }
         writeManager.handleCommit(fileId, offset, count);
+        if (offset == 0 && count == 0) {
+            // 最终提交后文件完成写入，关闭长度已过期的输入流，
+            // 中间提交的长度变化由getattr时的validateInputStream处理
+            dfsClientCache.invalidateInputStream(fileId);
+        }
     }
 
     @Override
@@ -351,6 +373,7 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
         HdfsFileStatus fileInfo = dfsClientCache.getSuperUserDFSClient().getFileInfo(targetIdPath);
         if (fileInfo != null) {
             writeManager.handleCommit(fileInfo.getFileId(), 0, 0);
+            readManager.invalidate(fileInfo.getFileId());
             dfsClientCache.getSuperUserDFSClient().delete(targetIdPath, false);
         }
     }
@@ -459,6 +482,9 @@ public class HadoopVirtualFileSystem implements VirtualFileSystem, CacheLoaderHe
                 LOG.debug("vfs.applyStatToPath(inode={}, size={})", fileId, size);
             }
             writeManager.handleCommit(fileId, 0, 0);
+            readManager.invalidate(fileId);
+            dfsClientCache.invalidateInputStream(fileId);
+            dfsClientCache.invalidateLocatedBlocks(fileId);
             dfsClient.truncate(fileIdPath, size);
         }
         int mode = Utils.getMode(fileStatus);
@@ -0,0 +1,240 @@
+package io.masterkun.nfsonhdfs.vfs;
+
+import org.apache.hadoop.hdfs.DFSInputStream;
+import org.apache.hadoop.hdfs.DFSInputStreamHelper;
+import org.apache.hadoop.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 同一文件的多个输入流，每个顺序读取的客户端独占一个输入流并保持自己的读取位置，
+ * 没有空闲输入流或者随机读取时使用不加锁的pread，开启hedged read时只使用pread
+ */
+public class StripedDfsInputStream implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(StripedDfsInputStream.class);
+
+    private final long fileId;
+    private final Opener opener;
+    private final Stripe[] stripes;
+    private final boolean preadOnly;
+    /**
+     * 首个输入流打开时的文件长度，关闭后保持不变
+     */
+    private final long fileLength;
+    /**
+     * 打开时文件正在写入，hflush后的数据在文件长度之后，不能使用文件长度判断文件末尾
+     */
+    private final boolean underConstruction;
+    /**
+     * 读到了打开时文件长度之后的数据，输入流需要重新打开
+     */
+    private volatile boolean stale;
+    private volatile boolean closed;
+    private final ReentrantLock tailLock = new ReentrantLock();
+    /**
+     * 读取打开时文件长度之后数据的输入流，只在读取位置超过其文件长度时重新打开
+     */
+    private DFSInputStream tail;
+
+    public StripedDfsInputStream(long fileId, int stripeNum, Opener opener) throws IOException {
+        this(fileId, stripeNum, false, opener);
+    }
+
+    public StripedDfsInputStream(long fileId, int stripeNum, boolean preadOnly, Opener opener)
+            throws IOException {
+        this.fileId = fileId;
+        this.opener = opener;
+        this.preadOnly = preadOnly;
+        this.stripes = new Stripe[Math.max(1, stripeNum)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        // 首个输入流用于pread以及获取文件长度
+        stripes[0].in = opener.open();
+        this.fileLength = stripes[0].in.getFileLength();
+        this.underConstruction = DFSInputStreamHelper.isUnderConstruction(stripes[0].in);
+    }
+
+    /**
+     * 读取数据，如果有输入流的当前位置与读取偏移量一致则顺序读取，否则使用pread读取
+     *
+     * @return 读取数据大小，到达文件末尾返回-1
+     */
+    public int read(long position, ByteBuffer buf) throws IOException {
+        checkClosed();
+        if (position >= fileLength) {
+            // 使用输入流缓存的文件长度判断是否到达文件末尾
+            return underConstruction ? readTail(position, buf) : -1;
+        }
+        if (preadOnly) {
+            return pread(position, buf);
+        }
+        for (Stripe stripe : stripes) {
+            if (stripe.position == position && stripe.lock.tryLock()) {
+                try {
+                    if (stripe.position == position) {
+                        return stripe.read(buf);
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+        int read = pread(position, buf);
+        if (read > 0) {
+            assign(position + read);
+        }
+        return read;
+    }
+
+    /**
+     * 使用pread读取数据，不改变任何输入流的当前位置
+     */
+    public int pread(long position, ByteBuffer buf) throws IOException {
+        checkClosed();
+        if (position >= fileLength) {
+            return underConstruction ? readTail(position, buf) : -1;
+        }
+        DFSInputStream in = stripes[0].in;
+        int read = in == null ? -1 : in.read(position, buf);
+        if (read < 0) {
+            // 与close并发时输入流可能已关闭，不能当作文件末尾
+            checkClosed();
+        }
+        return read;
+    }
+
+    /**
+     * 输入流打开时的文件长度
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * 正在写入的文件读取打开时文件长度之后的数据，复用同一个尾部输入流，
+     * 读取位置超过该输入流的文件长度时才重新打开一次获取最新的可见长度，
+     * 读到数据后标记输入流过期，由{@link #isStale()}的调用方替换输入流
+     */
+    private int readTail(long position, ByteBuffer buf) throws IOException {
+        tailLock.lock();
+        try {
+            checkClosed();
+            if (tail == null || position >= tail.getFileLength()) {
+                IOUtils.cleanupWithLogger(LOG, tail);
+                tail = null;
+                tail = opener.open();
+            }
+            int read = tail.read(position, buf);
+            if (read > 0) {
+                stale = true;
+            }
+            return read;
+        } finally {
+            tailLock.unlock();
+        }
+    }
+
+    public boolean isUnderConstruction() {
+        return underConstruction;
+    }
+
+    /**
+     * 是否读到过打开时文件长度之后的数据，需要重新打开输入流
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * 已关闭的输入流不能返回文件末尾，否则与淘汰或者提交并发的读取会得到错误的空数据
+     */
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("input stream of file " + fileId + " already closed");
+        }
+    }
+
+    /**
+     * 将最久未使用的空闲输入流分配给下一次读取，该输入流在下一次顺序读取时才会seek
+     */
+    private void assign(long nextPosition) {
+        Stripe lru = null;
+        for (Stripe stripe : stripes) {
+            if (stripe.position == nextPosition) {
+                return;
+            }
+            if (lru == null || stripe.lastAccess < lru.lastAccess) {
+                lru = stripe;
+            }
+        }
+        if (lru.lock.tryLock()) {
+            try {
+                lru.position = nextPosition;
+                lru.lastAccess = System.nanoTime();
+                lru.seek = true;
+            } finally {
+                lru.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                IOUtils.cleanupWithLogger(LOG, stripe.in);
+                stripe.in = null;
+                stripe.position = -1;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        tailLock.lock();
+        try {
+            IOUtils.cleanupWithLogger(LOG, tail);
+            tail = null;
+        } finally {
+            tailLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StripedDfsInputStream{fileId=" + fileId + ", stripes=" + stripes.length + '}';
+    }
+
+    public interface Opener {
+        DFSInputStream open() throws IOException;
+    }
+
+    private final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private DFSInputStream in;
+        private boolean seek;
+        private volatile long position = -1;
+        private volatile long lastAccess;
+
+        private int read(ByteBuffer buf) throws IOException {
+            checkClosed();
+            if (in == null) {
+                in = opener.open();
+            }
+            if (seek) {
+                in.seek(position);
+                seek = false;
+            }
+            lastAccess = System.nanoTime();
+            int read = in.read(buf);
+            position = read > 0 ? position + read : -1;
+            return read;
+        }
+    }
+}
@@ -4,12 +4,15 @@ import org.apache.hadoop.hdfs.DFSInputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 public final class ByteArrayPendingWrite implements PendingWrite {
 
     private final long offset;
     private final int count;
+    private final long createNanos = System.nanoTime();
     private final byte[] bytes;
     private final int arrayOffset;
 
@@ -21,14 +24,17 @@ public final class ByteArrayPendingWrite implements PendingWrite {
     }
 
     private ByteArrayPendingWrite(long offset, int count, byte[] bytes, int arrayOffset) {
-        this.offset = offset + arrayOffset;
-        this.count = count - arrayOffset;
-        this.bytes = bytes.clone();
+        this.offset = offset;
+        this.count = count;
+        this.bytes = bytes;
         this.arrayOffset = arrayOffset;
     }
 
+    /**
+     * 直接持有数组不复制，调用方之后不能再修改数组，nfs4j为每个写入请求解码新的数组
+     */
     public static PendingWrite get(long offset, int count, byte[] bytes) {
-        return new ByteArrayPendingWrite(offset, count, bytes.clone());
+        return new ByteArrayPendingWrite(offset, count, bytes);
     }
 
     @Override
@@ -37,19 +43,38 @@ public final class ByteArrayPendingWrite implements PendingWrite {
     }
 
     @Override
-    public boolean dataEquals(DFSInputStream in, int count) throws IOException {
+    public boolean dataEquals(DFSInputStream in, long position, int count) throws IOException {
         byte[] readData = new byte[count];
-        int read = in.read(offset, readData, 0, count);
+        int read = in.read(position, readData, 0, count);
         if (read < count) {
             throw new IllegalArgumentException("bytes read " + read + " is less than write count "
                     + count);
         }
-        return Arrays.equals(bytes, 0, count, readData, 0, count);
+        return Arrays.equals(bytes, arrayOffset, arrayOffset + count, readData, 0, count);
+    }
+
+    /**
+     * 切片与原数据共享数组
+     */
+    @Override
+    public PendingWrite slice(int arrayOffset, int count) {
+        return new ByteArrayPendingWrite(offset + arrayOffset, count, bytes,
+                this.arrayOffset + arrayOffset);
     }
 
     @Override
-    public PendingWrite slice(int arrayOffset) {
-        return new ByteArrayPendingWrite(offset, count, bytes, arrayOffset);
+    public int checksum(int count) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, arrayOffset, count);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public int copyTo(long position, ByteBuffer dst) {
+        int from = (int) (position - offset);
+        int n = Math.min(count - from, dst.remaining());
+        dst.put(bytes, arrayOffset + from, n);
+        return n;
     }
 
     @Override
@@ -62,6 +87,11 @@ public final class ByteArrayPendingWrite implements PendingWrite {
         return count;
     }
 
+    @Override
+    public long createNanos() {
+        return createNanos;
+    }
+
     @Override
     public String toString() {
         return "ByteArrayPendingWrite{" +
@@ -3,6 +3,7 @@ package io.masterkun.nfsonhdfs.writemanager;
 import io.masterkun.nfsonhdfs.util.Utils;
 import io.masterkun.nfsonhdfs.util.memory.CustomPooledMemoryManagerFactory;
 import io.masterkun.nfsonhdfs.util.memory.DirectByteBufferPool;
+import io.masterkun.nfsonhdfs.util.memory.RefCountedBuffer;
 import org.apache.hadoop.hdfs.DFSInputStream;
 
 import java.io.IOException;
@@ -10,6 +11,7 @@ import java.io.OutputStream;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 public final class ByteBufferPendingWrite implements PendingWrite {
     private static final DirectByteBufferPool BYTE_BUFFER_POOL =
@@ -33,68 +35,100 @@ public final class ByteBufferPendingWrite implements PendingWrite {
 
     private final long offset;
     private final int count;
+    private final long createNanos = System.nanoTime();
+    /**
+     * 写入数据，下标0对应offset，只使用绝对位置访问，切片共享同一个引用计数缓冲区
+     */
+    private final RefCountedBuffer buffer;
     private final ByteBuffer data;
+    /**
+     * 是否持有缓冲区的引用，切片不持有引用，由原数据统一释放
+     */
+    private final boolean owner;
     @SuppressWarnings("all")
     private volatile boolean released = false;
 
-    private ByteBufferPendingWrite(long offset, int count, ByteBuffer data) {
+    private ByteBufferPendingWrite(long offset, int count, RefCountedBuffer buffer,
+                                   boolean owner) {
         this.offset = offset;
         this.count = count;
-        this.data = data;
-    }
-
-    private ByteBufferPendingWrite(long offset, int count, ByteBuffer data, int arrayOffset) {
-        this.offset = offset + arrayOffset;
-        this.count = count - arrayOffset;
-        this.data = data.position(data.position() + arrayOffset);
+        this.buffer = buffer;
+        this.data = buffer.nioBuffer();
+        this.owner = owner;
     }
 
+    /**
+     * 从内存池申请引用计数缓冲区并复制RPC缓冲区中的数据，RPC缓冲区在请求处理完成后由nfs4j回收，
+     * 非同步写入在数据写入HDFS之前返回，所以不能直接持有RPC缓冲区，这是写入数据到达HDFS之前唯一的一次复制
+     */
     public static PendingWrite get(long offset, int count, ByteBuffer data) {
-        ByteBuffer buffer = BYTE_BUFFER_POOL.take(count).limit(count);
-        buffer.put(data);
-        buffer.flip();
-        return new ByteBufferPendingWrite(offset, count, buffer);
+        RefCountedBuffer buffer = RefCountedBuffer.allocate(count);
+        buffer.nioBuffer().put(0, data, data.position(), count);
+        data.position(data.position() + count);
+        return new ByteBufferPendingWrite(offset, count, buffer, true);
     }
 
     @Override
     public void release() {
-        if (VALUE.compareAndSet(this, false, true)) {
-            BYTE_BUFFER_POOL.give(data);
+        if (owner && VALUE.compareAndSet(this, false, true)) {
+            buffer.release();
         }
     }
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
-        int remaining = count;
         if (data.hasArray()) {
-            out.write(data.array(), data.arrayOffset(), remaining);
+            out.write(data.array(), data.arrayOffset(), count);
         } else {
             final byte[] bytes = BYTES_TL.get();
-            while (remaining > 0) {
-                int read = Math.min(BYTES_TL_LEN, remaining);
-                data.get(bytes, 0, read);
-                out.write(bytes, 0, read);
-                remaining -= read;
+            int written = 0;
+            while (written < count) {
+                int n = Math.min(BYTES_TL_LEN, count - written);
+                data.get(written, bytes, 0, n);
+                out.write(bytes, 0, n);
+                written += n;
             }
         }
     }
 
     @Override
-    public boolean dataEquals(DFSInputStream in, int count) throws IOException {
-        ByteBuffer buffer = BYTE_BUFFER_POOL.take(count);
-        int read = in.read(offset, buffer);
-        buffer.flip();
-        if (read < count) {
-            throw new IllegalArgumentException("bytes read " + read + " is less than write count "
-                    + count);
+    public boolean dataEquals(DFSInputStream in, long position, int count) throws IOException {
+        ByteBuffer buffer = BYTE_BUFFER_POOL.take(count).limit(count);
+        try {
+            int read = in.read(position, buffer);
+            if (read < count) {
+                throw new IllegalArgumentException("bytes read " + read + " is less than write " +
+                        "count " + count);
+            }
+            return data.slice(0, count).mismatch(buffer.flip()) == -1;
+        } finally {
+            BYTE_BUFFER_POOL.give(buffer);
         }
-        final int mismatch = data.mismatch(buffer);
-        return mismatch == -1 || mismatch >= count;
     }
 
+    /**
+     * 切片与原数据共享缓冲区，不复制数据，只在写入线程中同步使用，生命周期不超过原数据
+     */
     @Override
-    public PendingWrite slice(int arrayOffset) {
-        return new ByteBufferPendingWrite(offset, count, data, arrayOffset);
+    public PendingWrite slice(int arrayOffset, int count) {
+        return new ByteBufferPendingWrite(offset + arrayOffset, count,
+                buffer.slice(arrayOffset, count), false);
+    }
+
+    @Override
+    public int checksum(int count) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.slice(0, count));
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public int copyTo(long position, ByteBuffer dst) {
+        int from = (int) (position - offset);
+        int n = Math.min(count - from, dst.remaining());
+        dst.put(dst.position(), data, from, n);
+        dst.position(dst.position() + n);
+        return n;
     }
 
     @Override
@@ -107,12 +141,17 @@ public final class ByteBufferPendingWrite implements PendingWrite {
         return count;
     }
 
+    @Override
+    public long createNanos() {
+        return createNanos;
+    }
+
     @Override
     public String toString() {
         return "ByteBufferPendingWrite{" +
                 "offset=" + offset +
                 ", count=" + count +
-                ", data=" + data +
+                ", buffer=" + buffer +
                 ", released=" + released +
                 '}';
     }
@@ -0,0 +1,68 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 最近写入数据的校验和环，记录最近写入的数据范围及其CRC32C校验和，客户端重传的写入请求与记录的范围一致时
+ * 直接在内存中比对校验和，不需要同步后从HDFS读取比对。只在写入线程中访问
+ */
+final class ChecksumRing {
+    private final long[] offsets;
+    private final int[] counts;
+    private final int[] checksums;
+    /**
+     * 起始偏移量到环中下标的索引
+     */
+    private final Map<Long, Integer> index;
+    private int next;
+    private int size;
+
+    ChecksumRing(int capacity) {
+        this.offsets = new long[capacity];
+        this.counts = new int[capacity];
+        this.checksums = new int[capacity];
+        this.index = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * 记录写入数据的校验和，环满时覆盖最早的记录
+     */
+    void record(long offset, int count, int checksum) {
+        if (offsets.length == 0) {
+            return;
+        }
+        if (size == offsets.length) {
+            index.remove(offsets[next], next);
+        } else {
+            size++;
+        }
+        offsets[next] = offset;
+        counts[next] = count;
+        checksums[next] = checksum;
+        index.put(offset, next);
+        next = (next + 1) % offsets.length;
+    }
+
+    /**
+     * 比对重传数据的校验和
+     *
+     * @return 与记录一致返回true，不一致返回false，没有相同范围的记录时返回空
+     */
+    Boolean verify(long offset, int count, int checksum) {
+        Integer i = index.get(offset);
+        if (i == null || counts[i] != count) {
+            return null;
+        }
+        return checksums[i] == checksum;
+    }
+
+    /**
+     * 文件被截断后之前的记录全部失效
+     */
+    void clear() {
+        index.clear();
+        size = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,183 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import io.prometheus.client.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 按用户公平调度写入上下文，使用加权差额轮询(DRR)：每个用户一个等待队列，每次轮到用户时按权重增加额度，
+ * 运行队首的写入上下文并按待写入数据量扣减额度，额度用完后轮到下一个用户。同时运行的写入上下文数量不超过写入线程数，
+ * 单个用户正在运行的待写入数据量超过限制或者占用的写入线程达到写入线程数减一时跳过该用户，
+ * 大量写入的用户无法占满所有写入线程，少量写入的用户每轮都能得到运行机会
+ */
+final class FairWriteScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(FairWriteScheduler.class);
+    private static final Histogram QUEUE_DELAY_HISTOGRAM = Histogram.build()
+            .name("write_schedule_delay_seconds")
+            .labelNames("principal")
+            .help("Write Context Queue Delay Before Running")
+            .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5)
+            .register();
+
+    private final Executor executor;
+    private final int concurrency;
+    /**
+     * 单个用户同时运行的写入上下文数量上限，至少保留一个写入线程给其他用户
+     */
+    private final int principalConcurrency;
+    private final long quantumBytes;
+    private final long inFlightBytes;
+    private final Map<String, Integer> weights;
+    private final int defaultWeight;
+    private final Map<String, PrincipalQueue> queues = new HashMap<>();
+    /**
+     * 有等待任务的用户，按轮询顺序排列
+     */
+    private final Queue<PrincipalQueue> active = new ArrayDeque<>();
+    private int running;
+
+    FairWriteScheduler(Executor executor, int concurrency, long quantumBytes, long inFlightBytes,
+                       Map<String, Integer> weights, int defaultWeight) {
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.principalConcurrency = Math.max(1, concurrency - 1);
+        this.quantumBytes = Math.max(1, quantumBytes);
+        this.inFlightBytes = inFlightBytes;
+        this.weights = weights;
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * 提交任务到用户的等待队列
+     *
+     * @param bytes 任务的待写入数据量，全部计入用户正在运行的数据量；扣减额度时单次运行最多处理一批请求，
+     *              按不超过一个额度计算
+     */
+    synchronized void submit(String principal, long bytes, Runnable task) {
+        PrincipalQueue queue = queues.computeIfAbsent(principal, PrincipalQueue::new);
+        long realBytes = Math.max(0, bytes);
+        queue.tasks.add(new Task(task, Math.min(realBytes, quantumBytes), realBytes,
+                System.nanoTime()));
+        if (!queue.active) {
+            queue.active = true;
+            active.add(queue);
+        }
+        dispatch();
+    }
+
+    /**
+     * 轮询有等待任务的用户，直到没有空闲的运行位置或者所有用户都无法运行
+     */
+    private void dispatch() {
+        int skipped = 0;
+        PrincipalQueue queue;
+        while (running < concurrency && skipped < active.size() &&
+                (queue = active.peek()) != null) {
+            Task task = queue.tasks.peek();
+            if (task == null) {
+                // 没有等待任务的用户退出轮询，额度清零
+                active.poll();
+                queue.active = false;
+                queue.deficit = 0;
+                if (queue.running == 0) {
+                    queues.remove(queue.principal);
+                }
+                continue;
+            }
+            if (queue.running > 0 && (queue.running >= principalConcurrency ||
+                    queue.inFlight + task.bytes > inFlightBytes)) {
+                // 正在运行的数据量或者占用的写入线程超过限制，等待运行完成
+                active.add(active.poll());
+                skipped++;
+                continue;
+            }
+            if (queue.deficit < task.cost) {
+                // 每次轮到该用户时按权重增加额度
+                queue.deficit += quantumBytes * Math.max(1,
+                        weights.getOrDefault(queue.principal, defaultWeight));
+            }
+            queue.tasks.poll();
+            queue.deficit -= task.cost;
+            Task next = queue.tasks.peek();
+            if (next == null || queue.deficit < next.cost) {
+                // 额度用完，轮到下一个用户
+                active.add(active.poll());
+            }
+            if (!run(queue, task)) {
+                // 线程池拒绝执行，等待下一次提交或者任务完成时重新调度
+                return;
+            }
+            skipped = 0;
+        }
+    }
+
+    /**
+     * 提交任务到线程池，线程池拒绝执行时任务放回用户队列的队首并恢复计数和额度，
+     * 不抛出异常，否则在写入线程中完成任务时异常会中断调度
+     *
+     * @return 是否提交成功
+     */
+    private boolean run(PrincipalQueue queue, Task task) {
+        running++;
+        queue.running++;
+        queue.inFlight += task.bytes;
+        try {
+            executor.execute(() -> {
+                try {
+                    task.runnable.run();
+                } finally {
+                    complete(queue, task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running--;
+            queue.running--;
+            queue.inFlight -= task.bytes;
+            queue.deficit += task.cost;
+            queue.tasks.addFirst(task);
+            LOG.warn("Write task of principal {} rejected, retry later", queue.principal, e);
+            return false;
+        }
+        QUEUE_DELAY_HISTOGRAM.labels(queue.principal)
+                .observe((System.nanoTime() - task.submitTime) / 1e9);
+        return true;
+    }
+
+    private synchronized void complete(PrincipalQueue queue, Task task) {
+        running--;
+        queue.running--;
+        queue.inFlight -= task.bytes;
+        if (!queue.active && queue.running == 0) {
+            queues.remove(queue.principal, queue);
+        }
+        dispatch();
+    }
+
+    /**
+     * @param cost  扣减额度的数据量，不超过一个额度
+     * @param bytes 待写入数据量
+     */
+    private record Task(Runnable runnable, long cost, long bytes, long submitTime) {
+    }
+
+    private static final class PrincipalQueue {
+        private final String principal;
+        private final Deque<Task> tasks = new ArrayDeque<>();
+        private long deficit;
+        private long inFlight;
+        private int running;
+        private boolean active;
+
+        private PrincipalQueue(String principal) {
+            this.principal = principal;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+/**
+ * 段文件，新建文件中与当前写入偏移量相距较远的区域写入到同一目录下的隐藏段文件中，
+ * 多个区域的写入可以同时使用各自的HDFS写入管道，最终提交时使用concat按偏移量顺序拼接到目标文件。
+ * 只在写入线程中访问
+ */
+final class PartFile {
+    /**
+     * 段文件数据在目标文件中的起始偏移量
+     */
+    final long start;
+    final String path;
+    final HdfsDataOutputStream out;
+    /**
+     * 已经同步的段文件偏移量
+     */
+    private long synced;
+
+    PartFile(long start, String path, HdfsDataOutputStream out) {
+        this.start = start;
+        this.path = path;
+        this.out = out;
+    }
+
+    /**
+     * 段文件在目标文件中的预期写入偏移量
+     */
+    long pos() {
+        return start + out.getPos();
+    }
+
+    void sync(boolean hsync) throws IOException {
+        if (synced == out.getPos()) {
+            return;
+        }
+        if (hsync) {
+            out.hsync(EnumSet.of(HdfsDataOutputStream.SyncFlag.UPDATE_LENGTH));
+        } else {
+            out.hflush();
+        }
+        synced = out.getPos();
+    }
+
+    @Override
+    public String toString() {
+        return "PartFile{start=" + start + ", pos=" + pos() + ", path=" + path + '}';
+    }
+}
@@ -8,6 +8,11 @@ sealed interface PendingAction extends Comparable<PendingAction> permits Pending
 
     int self();
 
+    /**
+     * 请求到达的时间，System.nanoTime()，用于统计各阶段的等待时间
+     */
+    long createNanos();
+
     @Override
     default int compareTo(PendingAction o) {
         long offsetDiff = offset() - o.offset();
@@ -2,8 +2,19 @@ package io.masterkun.nfsonhdfs.writemanager;
 
 import java.util.concurrent.CompletableFuture;
 
-record PendingCommit(long offset, int count,
-                     CompletableFuture<Void> hook) implements PendingAction {
+/**
+ * @param stable 稳定写入的提交，要求数据hsync持久化后才能完成
+ */
+record PendingCommit(long offset, int count, CompletableFuture<Void> hook, boolean stable,
+                     long createNanos) implements PendingAction {
+    PendingCommit(long offset, int count, CompletableFuture<Void> hook) {
+        this(offset, count, hook, false);
+    }
+
+    PendingCommit(long offset, int count, CompletableFuture<Void> hook, boolean stable) {
+        this(offset, count, hook, stable, System.nanoTime());
+    }
+
     @Override
     public int self() {
         return 1;
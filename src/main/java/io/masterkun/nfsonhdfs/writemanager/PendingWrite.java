@@ -4,9 +4,10 @@ import org.apache.hadoop.hdfs.DFSInputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 sealed interface PendingWrite extends PendingAction permits ByteArrayPendingWrite,
-        ByteBufferPendingWrite {
+        ByteBufferPendingWrite, SpilledPendingWrite {
     @Override
     default int self() {
         return 0;
@@ -18,7 +19,33 @@ sealed interface PendingWrite extends PendingAction permits ByteArrayPendingWrit
 
     void writeTo(OutputStream out) throws IOException;
 
-    boolean dataEquals(DFSInputStream in, int count) throws IOException;
+    default boolean dataEquals(DFSInputStream in, int count) throws IOException {
+        return dataEquals(in, offset(), count);
+    }
+
+    /**
+     * 比对从文件偏移量position开始读取的数据与自身开头count字节的数据是否一致
+     */
+    boolean dataEquals(DFSInputStream in, long position, int count) throws IOException;
+
+    default PendingWrite slice(int arrayOffset) throws IOException {
+        return slice(arrayOffset, count() - arrayOffset);
+    }
+
+    /**
+     * 从arrayOffset开始count字节数据的切片，与原数据共享存储，由原数据统一释放
+     */
+    PendingWrite slice(int arrayOffset, int count) throws IOException;
+
+    /**
+     * 计算从起始偏移量开始count字节数据的CRC32C校验和，不改变自身的读取位置
+     */
+    int checksum(int count);
 
-    PendingWrite slice(int arrayOffset) throws IOException;
+    /**
+     * 复制文件偏移量position开始的数据到缓冲区，不改变自身的读取位置
+     *
+     * @return 复制数据大小
+     */
+    int copyTo(long position, ByteBuffer dst);
 }
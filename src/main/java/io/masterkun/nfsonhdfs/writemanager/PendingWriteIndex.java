@@ -0,0 +1,170 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 待写入数据索引，按照偏移量索引尚未对读取可见的写入数据，用于读取正在写入的文件时读取到已写入的数据，
+ * 数据在hflush或者hsync之后对读取可见，此时从索引中删除并释放。
+ * 写入HDFS后仍然保留的数据计入写入预算，超出预算时不再保留
+ */
+final class PendingWriteIndex {
+    private final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+    /**
+     * 读取时持有读锁，删除并释放数据时持有写锁
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long maxBytes;
+    private final WriteBudget budget;
+    private final String principal;
+    private volatile boolean closed;
+
+    PendingWriteIndex(long maxBytes, WriteBudget budget, String principal) {
+        this.maxBytes = maxBytes;
+        this.budget = budget;
+        this.principal = principal;
+    }
+
+    /**
+     * 加入索引，超出索引大小限制或者已有相同偏移量的数据时不加入
+     *
+     * @return 是否加入索引，加入索引的数据由索引负责释放
+     */
+    boolean add(PendingWrite write) {
+        if (bytes.get() + write.count() > maxBytes) {
+            return false;
+        }
+        // 与clear互斥，关闭后加入的数据不会再被释放
+        lock.writeLock().lock();
+        try {
+            if (closed || entries.putIfAbsent(write.offset(), new Entry(write)) != null) {
+                return false;
+            }
+            bytes.getAndAdd(write.count());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 写入线程写入数据后调用，没有加入索引的数据直接释放，否则重新申请写入预算后等待数据可见后释放，
+     * 申请不到预算时同样直接释放
+     */
+    void written(PendingWrite write, long visibleOffset) {
+        Entry entry = entries.get(write.offset());
+        if (entry == null || entry.write != write) {
+            write.release();
+        } else if (write.offset() + write.count() <= visibleOffset ||
+                !budget.tryAcquire(principal, write.count())) {
+            remove(entry);
+        } else {
+            entry.charged = true;
+            entry.written = true;
+        }
+    }
+
+    /**
+     * 数据hflush或者hsync后调用，删除并释放偏移量之前的已写入数据
+     */
+    void visible(long visibleOffset) {
+        Iterator<Entry> iterator = entries.headMap(visibleOffset).values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.written && entry.write.offset() + entry.write.count() <= visibleOffset) {
+                remove(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        lock.writeLock().lock();
+        try {
+            if (entries.remove(entry.write.offset(), entry)) {
+                bytes.getAndAdd(-entry.write.count());
+                release(entry);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从偏移量开始读取连续的待写入数据
+     *
+     * @return 读取数据大小，索引中没有该偏移量的数据时返回0
+     */
+    int read(long offset, ByteBuffer data) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        lock.readLock().lock();
+        try {
+            int read = 0;
+            while (data.hasRemaining() && !closed) {
+                long position = offset + read;
+                var floor = entries.floorEntry(position);
+                if (floor == null) {
+                    break;
+                }
+                PendingWrite write = floor.getValue().write;
+                if (write.offset() + write.count() <= position) {
+                    break;
+                }
+                read += write.copyTo(position, data);
+            }
+            return read;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * 写入上下文关闭时释放所有数据
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            for (Entry entry : entries.values()) {
+                release(entry);
+            }
+            entries.clear();
+            bytes.set(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void release(Entry entry) {
+        entry.write.release();
+        if (entry.charged) {
+            budget.release(principal, entry.write.count());
+        }
+    }
+
+    private static final class Entry {
+        private final PendingWrite write;
+        /**
+         * 是否已被写入线程写入，只在写入线程中访问
+         */
+        private boolean written;
+        /**
+         * 是否已计入写入预算，只在写入线程中修改
+         */
+        private boolean charged;
+
+        private Entry(PendingWrite write) {
+            this.write = write;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * 乱序写入缓冲区，按照起始偏移量索引互不重叠的连续数据段，写入到达时与前后首尾相连的数据段合并，
+ * 判断是否与写入偏移量衔接只需要查看第一个数据段，衔接后整个连续数据段一次取出写入。
+ * <p>
+ * 与已有数据段重叠的写入一般是客户端重传，单独按偏移量排序，到达写入偏移量后按照重复写处理。
+ * 只在写入线程中访问
+ */
+final class ReorderBuffer {
+    private final TreeMap<Long, Run> runs = new TreeMap<>();
+    private final Queue<PendingWrite> overlapped = new PriorityQueue<>();
+    private int size;
+    private long bytes;
+
+    void add(PendingWrite write) {
+        long start = write.offset();
+        long end = start + write.count();
+        size++;
+        bytes += write.count();
+        Map.Entry<Long, Run> floor = runs.floorEntry(start);
+        Map.Entry<Long, Run> higher = runs.higherEntry(start);
+        if ((floor != null && floor.getValue().end > start) ||
+                (higher != null && higher.getKey() < end)) {
+            overlapped.add(write);
+            return;
+        }
+        Run run;
+        if (floor != null && floor.getValue().end == start) {
+            run = floor.getValue();
+            run.append(write);
+        } else {
+            run = new Run(write);
+            runs.put(start, run);
+        }
+        if (higher != null && higher.getKey() == end) {
+            runs.remove(end);
+            run.append(higher.getValue());
+        }
+    }
+
+    /**
+     * 取出起始偏移量不大于写入偏移量的连续数据段，优先取出不重叠的数据段
+     *
+     * @return 按偏移量排列且首尾相连的写入数据，没有衔接的数据时返回空
+     */
+    List<PendingWrite> poll(long pos) {
+        return poll(Long.MIN_VALUE, pos);
+    }
+
+    /**
+     * 取出起始偏移量在[from, pos]范围内的连续数据段，用于分别衔接多个写入区域
+     */
+    List<PendingWrite> poll(long from, long pos) {
+        Map.Entry<Long, Run> first = runs.ceilingEntry(from);
+        if (first != null && first.getKey() <= pos) {
+            runs.remove(first.getKey());
+            Run run = first.getValue();
+            size -= run.writes.size();
+            bytes -= run.end - run.start;
+            return run.writes;
+        }
+        PendingWrite write = overlapped.peek();
+        if (write != null && write.offset() >= from && write.offset() <= pos) {
+            overlapped.poll();
+            size--;
+            bytes -= write.count();
+            return List.of(write);
+        }
+        return null;
+    }
+
+    /**
+     * 缓冲的写入请求中最小的起始偏移量，用于判断写入偏移量之后的空洞
+     *
+     * @return 最小起始偏移量，缓冲区为空时返回Long.MAX_VALUE
+     */
+    long firstOffset() {
+        long offset = runs.isEmpty() ? Long.MAX_VALUE : runs.firstKey();
+        PendingWrite write = overlapped.peek();
+        return write == null ? offset : Math.min(offset, write.offset());
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 缓冲的写入请求数量
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 缓冲的写入数据量，重叠部分重复计算
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * 取出所有缓冲的写入请求，用于关闭上下文时释放
+     */
+    List<PendingWrite> drain() {
+        List<PendingWrite> writes = new ArrayList<>(size);
+        for (Run run : runs.values()) {
+            writes.addAll(run.writes);
+        }
+        writes.addAll(overlapped);
+        runs.clear();
+        overlapped.clear();
+        size = 0;
+        bytes = 0;
+        return writes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ReorderBuffer{runs=[");
+        boolean first = true;
+        for (Run run : runs.values()) {
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            builder.append(run.start).append('-').append(run.end)
+                    .append('(').append(run.writes.size()).append(')');
+        }
+        return builder.append("], overlapped=").append(overlapped).append('}').toString();
+    }
+
+    private static final class Run {
+        private final long start;
+        private final List<PendingWrite> writes = new ArrayList<>();
+        private long end;
+
+        private Run(PendingWrite write) {
+            this.start = write.offset();
+            this.end = start;
+            append(write);
+        }
+
+        private void append(PendingWrite write) {
+            writes.add(write);
+            end += write.count();
+        }
+
+        private void append(Run run) {
+            writes.addAll(run.writes);
+            end = run.end;
+        }
+    }
+}
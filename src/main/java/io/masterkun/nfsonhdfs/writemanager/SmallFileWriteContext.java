@@ -0,0 +1,295 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.masterkun.nfsonhdfs.util.StringBuilderFormattable;
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.masterkun.nfsonhdfs.vfs.FileHandle;
+import io.prometheus.client.Counter;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.io.IOUtils;
+import org.dcache.nfs.status.DelayException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 小文件写入上下文，新建文件的写入数据先缓存在内存中，最终提交或者空闲超时时一次写入并关闭文件，
+ * 不占用写入线程。文件大小超过阈值、同步写入或者非最终提交时转为普通的写入上下文，缓存的数据按收到的范围
+ * 交给普通写入上下文，之后的请求全部转发
+ */
+final class SmallFileWriteContext implements WriteContext, StringBuilderFormattable {
+    private static final Logger LOG = LoggerFactory.getLogger(SmallFileWriteContext.class);
+    private static final Counter SMALL_FILE_WRITE_COUNTER = Counter.build()
+            .name("small_file_write")
+            .labelNames("result")
+            .help("Small File Writes Flushed Or Promoted")
+            .register();
+    private static final ScheduledExecutorService TIMEOUT_SERVICE =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("small-file-timeout-%d")
+                    .build());
+
+    private final FileHandle fileHandle;
+    private final DFSClient dfsClient;
+    private final HdfsDataOutputStream out;
+    private final WriteContextFactoryImpl factory;
+    private final String partPathPrefix;
+    private final int maxFileSize;
+    private final long writeWaitTimeoutMs;
+    private byte[] buffer = new byte[0];
+    /**
+     * 缓存数据的文件大小，即所有写入的最大结束偏移量
+     */
+    private int length;
+    /**
+     * 已收到数据的范围，起始偏移量到结束偏移量，乱序写入留下的空洞不在范围内
+     */
+    private final TreeMap<Integer, Integer> ranges = new TreeMap<>();
+    /**
+     * 已申请的写入预算
+     */
+    private int acquired;
+    private long refreshTime;
+    private boolean closed;
+    /**
+     * 转为普通写入上下文后的目标，之后的请求全部转发
+     */
+    private WriteContextImpl delegate;
+
+    SmallFileWriteContext(FileHandle fileHandle, DFSClient dfsClient, HdfsDataOutputStream out,
+                          WriteContextFactoryImpl factory, String partPathPrefix) {
+        this.fileHandle = fileHandle;
+        this.dfsClient = dfsClient;
+        this.out = out;
+        this.factory = factory;
+        this.partPathPrefix = partPathPrefix;
+        this.maxFileSize = Utils.getServerConfig()
+                .getVfs()
+                .getWriteManager()
+                .getSmallFileWriteMaxBytes();
+        this.writeWaitTimeoutMs = Utils.getServerConfig()
+                .getVfs()
+                .getWriteManager()
+                .getWriteWaitTimeoutMs();
+        this.refreshTime = System.currentTimeMillis();
+        TIMEOUT_SERVICE.schedule(this::checkTimeout, writeWaitTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long handleWrite(long offset, byte[] data, int count, boolean sync) throws IOException {
+        WriteContextImpl target;
+        synchronized (this) {
+            if ((target = delegate) == null) {
+                checkClosed();
+                if (!sync && offset + count <= maxFileSize) {
+                    int end = (int) offset + count;
+                    ensureCapacity(end);
+                    System.arraycopy(data, 0, buffer, (int) offset, count);
+                    addRange((int) offset, end);
+                    length = Math.max(length, end);
+                    refreshTime = System.currentTimeMillis();
+                    return length;
+                }
+                target = promote();
+            }
+        }
+        return target.handleWrite(offset, data, count, sync);
+    }
+
+    @Override
+    public long handleWrite(long offset, ByteBuffer data, boolean sync) throws IOException {
+        WriteContextImpl target;
+        synchronized (this) {
+            if ((target = delegate) == null) {
+                checkClosed();
+                int count = data.remaining();
+                if (!sync && offset + count <= maxFileSize) {
+                    int end = (int) offset + count;
+                    ensureCapacity(end);
+                    data.get(buffer, (int) offset, count);
+                    addRange((int) offset, end);
+                    length = Math.max(length, end);
+                    refreshTime = System.currentTimeMillis();
+                    return length;
+                }
+                target = promote();
+            }
+        }
+        return target.handleWrite(offset, data, sync);
+    }
+
+    @Override
+    public void handleCommit(long offset, int count) throws IOException {
+        WriteContextImpl target;
+        synchronized (this) {
+            if ((target = delegate) == null) {
+                if (offset == 0 && count == 0) {
+                    // 最终提交，一次写入并关闭文件
+                    if (!closed) {
+                        flush();
+                    }
+                    return;
+                }
+                checkClosed();
+                // 非最终提交要求持久化部分数据，转为普通写入上下文处理
+                target = promote();
+            }
+        }
+        target.handleCommit(offset, count);
+    }
+
+    @Override
+    public synchronized int readPending(long offset, ByteBuffer data) {
+        if (delegate != null) {
+            return delegate.readPending(offset, data);
+        }
+        Map.Entry<Integer, Integer> range = closed || offset >= length ? null :
+                ranges.floorEntry((int) offset);
+        if (range == null || range.getValue() <= offset) {
+            return 0;
+        }
+        int n = (int) Math.min(data.remaining(), range.getValue() - offset);
+        data.put(buffer, (int) offset, n);
+        return n;
+    }
+
+    /**
+     * 记录收到数据的范围，与相邻或者重叠的范围合并
+     */
+    private void addRange(int start, int end) {
+        Map.Entry<Integer, Integer> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        Map.Entry<Integer, Integer> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    /**
+     * 扩容缓存，按倍数增长，同时申请增加部分的写入预算
+     */
+    private void ensureCapacity(int end) throws DelayException {
+        if (end <= buffer.length) {
+            return;
+        }
+        int capacity = Math.min(maxFileSize, Math.max(end, buffer.length * 2));
+        if (!factory.writeBudget().tryAcquire(fileHandle.principal(), capacity - acquired)) {
+            throw new DelayException("write budget exhausted");
+        }
+        acquired = capacity;
+        buffer = Arrays.copyOf(buffer, capacity);
+    }
+
+    private void checkClosed() throws IOException {
+        if (closed) {
+            throw new IOException("write context already closed");
+        }
+    }
+
+    /**
+     * 缓存数据一次写入后关闭文件
+     */
+    private void flush() throws IOException {
+        closed = true;
+        try {
+            out.write(buffer, 0, length);
+            out.close();
+            SMALL_FILE_WRITE_COUNTER.labels("flushed").inc();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("{} flushed", this);
+            }
+        } catch (IOException e) {
+            IOUtils.cleanupWithLogger(LOG, out);
+            throw e;
+        } finally {
+            releaseBuffer();
+            factory.cleanUp(fileHandle, this);
+        }
+    }
+
+    /**
+     * 转为普通写入上下文，缓存数据按收到的范围分别作为写入交给普通写入上下文，
+     * 空洞由普通写入上下文按乱序写入处理，不能作为零写入
+     */
+    private WriteContextImpl promote() throws IOException {
+        WriteContextImpl target = WriteContextImpl.get(fileHandle, dfsClient, out, factory,
+                partPathPrefix);
+        delegate = target;
+        factory.replace(fileHandle, this, target);
+        SMALL_FILE_WRITE_COUNTER.labels("promoted").inc();
+        LOG.info("{} promoted to {}", this, target);
+        byte[] data = buffer;
+        Map<Integer, Integer> received = new TreeMap<>(ranges);
+        releaseBuffer();
+        for (Map.Entry<Integer, Integer> range : received.entrySet()) {
+            int start = range.getKey();
+            int end = range.getValue();
+            target.handleWrite(start, Arrays.copyOfRange(data, start, end), end - start, false);
+        }
+        return target;
+    }
+
+    private void releaseBuffer() {
+        factory.writeBudget().release(fileHandle.principal(), acquired);
+        acquired = 0;
+        buffer = new byte[0];
+        ranges.clear();
+        length = 0;
+    }
+
+    /**
+     * 空闲超时没有收到最终提交时同样写入并关闭文件
+     */
+    private void checkTimeout() {
+        long delay;
+        synchronized (this) {
+            if (closed || delegate != null) {
+                return;
+            }
+            delay = refreshTime + writeWaitTimeoutMs - System.currentTimeMillis();
+            if (delay <= 0) {
+                LOG.info("{} closing because no pending commands received", this);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    LOG.error("{} write error", this, e);
+                }
+                return;
+            }
+        }
+        TIMEOUT_SERVICE.schedule(this::checkTimeout, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        formatTo(builder);
+        return builder.toString();
+    }
+
+    @Override
+    public void formatTo(StringBuilder buffer) {
+        buffer.append("SmallFileWriteContext{handle=");
+        fileHandle.formatTo(buffer);
+        buffer.append(", length=")
+                .append(length)
+                .append(", closed=")
+                .append(closed)
+                .append('}');
+    }
+}
@@ -0,0 +1,156 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 写入数据落盘存储，待写入数据超出内存限制时写入本地磁盘上内存映射的段文件。
+ * <p>
+ * 段文件按顺序分配空间，每个写入数据持有所在段文件的一个引用，段文件写满并且所有数据都被释放后删除
+ */
+final class SpillStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SpillStore.class);
+    private static final Gauge SPILLED_WRITE_BYTES_GAUGE = Gauge.build()
+            .name("spilled_write_bytes")
+            .help("Pending Write Bytes Spilled To Local Disk")
+            .register();
+    private static final Counter SPILLED_WRITE_COUNTER = Counter.build()
+            .name("spilled_write")
+            .help("Pending Writes Spilled To Local Disk")
+            .register();
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static volatile SpillStore instance;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final AtomicLong segmentSeq = new AtomicLong();
+    private Segment current;
+
+    private SpillStore(Path dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        // 清理上次运行遗留的段文件
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static SpillStore getInstance() {
+        if (instance == null) {
+            synchronized (SpillStore.class) {
+                if (instance == null) {
+                    AppConfig.WriteManagerConfig config = Utils.getServerConfig()
+                            .getVfs()
+                            .getWriteManager();
+                    try {
+                        instance = new SpillStore(Paths.get(config.getSpillDir()),
+                                config.getSpillSegmentBytes());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    LOG.info("Spill pending writes to {}", config.getSpillDir());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 分配落盘空间
+     *
+     * @return 段文件中大小为count的映射缓冲区，所在段文件的引用由调用方通过{@link Segment#release(int)}释放
+     */
+    synchronized Allocation allocate(int count) throws IOException {
+        if (count > segmentBytes) {
+            // 超过段文件大小的数据单独使用一个段文件
+            Segment segment = newSegment(count);
+            Allocation allocation = segment.allocate(count);
+            segment.release();
+            return allocation;
+        }
+        if (current == null || current.remaining() < count) {
+            if (current != null) {
+                current.release();
+            }
+            current = newSegment(segmentBytes);
+        }
+        return current.allocate(count);
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        Path path = dir.resolve(SEGMENT_PREFIX + segmentSeq.incrementAndGet() + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 映射后即可关闭文件，映射在缓冲区被回收时解除
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    record Allocation(Segment segment, ByteBuffer buffer) {
+    }
+
+    static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        /**
+         * 分配出去的数据数量，正在分配的段文件额外持有一个引用
+         */
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+        private int allocated;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private int remaining() {
+            return buffer.capacity() - allocated;
+        }
+
+        private Allocation allocate(int count) {
+            ByteBuffer slice = buffer.slice(allocated, count);
+            allocated += count;
+            refCnt.incrementAndGet();
+            SPILLED_WRITE_COUNTER.inc();
+            SPILLED_WRITE_BYTES_GAUGE.inc(count);
+            return new Allocation(this, slice);
+        }
+
+        void release(int count) {
+            SPILLED_WRITE_BYTES_GAUGE.dec(count);
+            release();
+        }
+
+        private void release() {
+            if (refCnt.decrementAndGet() == 0) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    LOG.warn("Delete spill segment {} error", path, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import io.masterkun.nfsonhdfs.util.Utils;
+import org.apache.hadoop.hdfs.DFSInputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * 落盘的待写入数据，数据保存在本地磁盘段文件的内存映射中，不占用直接内存池
+ */
+public final class SpilledPendingWrite implements PendingWrite {
+    private static final int BYTES_TL_LEN = Utils.getServerConfig()
+            .getVfs()
+            .getWriteManager()
+            .getWriteBufferLength();
+    private static final ThreadLocal<byte[]> BYTES_TL =
+            ThreadLocal.withInitial(() -> new byte[BYTES_TL_LEN]);
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            VALUE = l.findVarHandle(SpilledPendingWrite.class, "released", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long offset;
+    private final int count;
+    private final long createNanos = System.nanoTime();
+    private final SpillStore.Segment segment;
+    /**
+     * 映射缓冲区，下标0对应offset，只使用绝对位置访问
+     */
+    private final ByteBuffer data;
+    @SuppressWarnings("all")
+    private volatile boolean released = false;
+
+    private SpilledPendingWrite(long offset, int count, SpillStore.Segment segment,
+                                ByteBuffer data) {
+        this.offset = offset;
+        this.count = count;
+        this.segment = segment;
+        this.data = data;
+    }
+
+    public static PendingWrite get(long offset, int count, byte[] bytes) throws IOException {
+        SpillStore.Allocation allocation = SpillStore.getInstance().allocate(count);
+        allocation.buffer().put(0, bytes, 0, count);
+        return new SpilledPendingWrite(offset, count, allocation.segment(), allocation.buffer());
+    }
+
+    public static PendingWrite get(long offset, int count, ByteBuffer buffer) throws IOException {
+        SpillStore.Allocation allocation = SpillStore.getInstance().allocate(count);
+        allocation.buffer().put(0, buffer, buffer.position(), count);
+        buffer.position(buffer.position() + count);
+        return new SpilledPendingWrite(offset, count, allocation.segment(), allocation.buffer());
+    }
+
+    @Override
+    public void release() {
+        if (segment != null && VALUE.compareAndSet(this, false, true)) {
+            segment.release(count);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final byte[] bytes = BYTES_TL.get();
+        int written = 0;
+        while (written < count) {
+            int n = Math.min(BYTES_TL_LEN, count - written);
+            data.get(written, bytes, 0, n);
+            out.write(bytes, 0, n);
+            written += n;
+        }
+    }
+
+    @Override
+    public boolean dataEquals(DFSInputStream in, long position, int count) throws IOException {
+        byte[] readData = new byte[count];
+        int read = in.read(position, readData, 0, count);
+        if (read < count) {
+            throw new IllegalArgumentException("bytes read " + read + " is less than write count "
+                    + count);
+        }
+        return data.slice(0, count).mismatch(ByteBuffer.wrap(readData)) == -1;
+    }
+
+    /**
+     * 切片与原数据共享段文件，不持有段文件引用，由原数据统一释放
+     */
+    @Override
+    public PendingWrite slice(int arrayOffset, int count) {
+        return new SpilledPendingWrite(offset + arrayOffset, count, null,
+                data.slice(arrayOffset, count));
+    }
+
+    @Override
+    public int checksum(int count) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.slice(0, count));
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public int copyTo(long position, ByteBuffer dst) {
+        int from = (int) (position - offset);
+        int n = Math.min(count - from, dst.remaining());
+        dst.put(dst.position(), data, from, n);
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    @Override
+    public long offset() {
+        return offset;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public long createNanos() {
+        return createNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SpilledPendingWrite{" +
+                "offset=" + offset +
+                ", count=" + count +
+                ", released=" + released +
+                '}';
+    }
+}
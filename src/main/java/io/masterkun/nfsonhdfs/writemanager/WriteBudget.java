@@ -0,0 +1,71 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 写入预算，限制全局以及每个用户尚未写入HDFS的数据量，超出预算的写入请求直接拒绝，
+ * 由客户端稍后重试，不占用请求处理线程等待
+ */
+final class WriteBudget {
+    private static final Gauge WRITE_BUDGET_USED_BYTES_GAUGE = Gauge.build()
+            .name("write_budget_used_bytes")
+            .help("Write Budget Used Bytes")
+            .register();
+    private static final Counter WRITE_BUDGET_REJECTED_COUNTER = Counter.build()
+            .name("write_budget_rejected")
+            .labelNames("scope")
+            .help("Write Requests Rejected By Write Budget")
+            .register();
+
+    private final long globalBytes;
+    private final long principalBytes;
+    private final AtomicLong used = new AtomicLong();
+    private final ConcurrentHashMap<String, Long> principalUsed = new ConcurrentHashMap<>();
+
+    WriteBudget(long globalBytes, long principalBytes) {
+        this.globalBytes = globalBytes;
+        this.principalBytes = principalBytes;
+    }
+
+    /**
+     * 申请预算，没有占用预算时总是允许，防止超过预算大小的单个写入永远无法写入
+     *
+     * @return 是否申请成功，申请成功后需要调用{@link #release(String, int)}释放
+     */
+    boolean tryAcquire(String principal, int bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current > 0 && current + bytes > globalBytes) {
+                WRITE_BUDGET_REJECTED_COUNTER.labels("global").inc();
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        boolean[] acquired = new boolean[1];
+        principalUsed.compute(principal, (k, v) -> {
+            long principalCurrent = v == null ? 0 : v;
+            if (principalCurrent > 0 && principalCurrent + bytes > principalBytes) {
+                return v;
+            }
+            acquired[0] = true;
+            return principalCurrent + bytes;
+        });
+        if (!acquired[0]) {
+            used.getAndAdd(-bytes);
+            WRITE_BUDGET_REJECTED_COUNTER.labels("principal").inc();
+            return false;
+        }
+        WRITE_BUDGET_USED_BYTES_GAUGE.inc(bytes);
+        return true;
+    }
+
+    void release(String principal, int bytes) {
+        principalUsed.computeIfPresent(principal, (k, v) -> v - bytes <= 0 ? null : v - bytes);
+        used.getAndAdd(-bytes);
+        WRITE_BUDGET_USED_BYTES_GAUGE.dec(bytes);
+    }
+}
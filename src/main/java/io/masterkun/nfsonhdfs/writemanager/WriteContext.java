@@ -5,9 +5,14 @@ import java.nio.ByteBuffer;
 
 public interface WriteContext {
 
-    long handleWrite(long offset, byte[] data, int count) throws IOException;
+    /**
+     * @param sync 是否同步写入，同步写入时等待数据与写入一起提交后返回
+     */
+    long handleWrite(long offset, byte[] data, int count, boolean sync) throws IOException;
 
-    long handleWrite(long offset, ByteBuffer buffer) throws IOException;
+    long handleWrite(long offset, ByteBuffer buffer, boolean sync) throws IOException;
 
     void handleCommit(long offset, int count) throws IOException;
+
+    int readPending(long offset, ByteBuffer data);
 }
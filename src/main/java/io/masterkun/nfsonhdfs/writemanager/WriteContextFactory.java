@@ -12,5 +12,14 @@ public interface WriteContextFactory {
 
     WriteContext cacheGetOption(FileHandle handle);
 
+    WriteContext cacheGetOption(long fileId);
+
     WriteContext cacheGet(FileHandle handle, DfsClientCache clientCache) throws IOException;
+
+    /**
+     * 关闭文件空闲时保留的输出流，没有保留时忽略
+     *
+     * @param fileId 文件id
+     */
+    void closeWarmStream(long fileId);
 }
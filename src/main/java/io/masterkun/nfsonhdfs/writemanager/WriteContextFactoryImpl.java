@@ -1,15 +1,23 @@
 package io.masterkun.nfsonhdfs.writemanager;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.github.benmanes.caffeine.cache.Scheduler;
 import io.masterkun.nfsonhdfs.CallContext;
+import io.masterkun.nfsonhdfs.util.AppConfig;
 import io.masterkun.nfsonhdfs.util.Utils;
 import io.masterkun.nfsonhdfs.vfs.DfsClientCache;
 import io.masterkun.nfsonhdfs.vfs.FileHandle;
+import io.prometheus.client.Counter;
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.DFSClient;
 import org.apache.hadoop.hdfs.DFSOutputStream;
 import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
 import org.apache.hadoop.hdfs.client.impl.DfsClientConf;
+import org.apache.hadoop.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,13 +28,87 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class WriteContextFactoryImpl implements WriteContextFactory {
     private static final Logger LOG = LoggerFactory.getLogger(WriteContextFactoryImpl.class);
+    private static final Counter APPEND_REOPEN_AVOIDED_COUNTER = Counter.build()
+            .name("append_reopen_avoided")
+            .help("Append Reopens Avoided By Warm Streams")
+            .register();
 
-    private final Map<FileHandle, WriteContext> CACHE = new ConcurrentHashMap<>(
-            Utils.getServerConfig().getVfs().getWriteManager().getWriteThreadMaxNum()
-    );
+    private final Map<FileHandle, WriteContext> CACHE = new ConcurrentHashMap<>();
+    /**
+     * 按照文件id索引写入上下文，用于读取正在写入的文件
+     */
+    private final Map<Long, WriteContext> FILE_ID_INDEX = new ConcurrentHashMap<>();
+    private final WriteBudget writeBudget;
+    /**
+     * 空闲关闭的写入上下文保留的输出流，按文件id索引，保持租约和写入管道，同一文件再次写入时直接使用，
+     * 不需要重新append。按照LRU限制保留的数量，过期或者淘汰时关闭，未开启时为空
+     */
+    private final Cache<Long, WarmStream> warmStreams;
+    private final boolean smallFileWriteEnabled;
+
+    public WriteContextFactoryImpl() {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        this.writeBudget = new WriteBudget(config.getWriteBudgetBytes(),
+                config.getWriteBudgetPerPrincipalBytes());
+        this.smallFileWriteEnabled = config.isSmallFileWriteEnabled();
+        if (config.isWarmStreamEnabled()) {
+            this.warmStreams = Caffeine.from(config.getWarmStreamCacheSpec())
+                    .scheduler(Scheduler.systemScheduler())
+                    .removalListener((RemovalListener<Long, WarmStream>) (key, value, cause) -> {
+                        // 取出复用时不关闭
+                        if (value != null && cause != RemovalCause.EXPLICIT) {
+                            LOG.info("Close warm stream {} because {}", value.fileHandle(), cause);
+                            IOUtils.cleanupWithLogger(LOG, value.out());
+                        }
+                    })
+                    .recordStats()
+                    .build();
+            Utils.getCacheMetricsCollector().addCache("warm_stream_cache", warmStreams);
+        } else {
+            this.warmStreams = null;
+        }
+    }
+
+    WriteBudget writeBudget() {
+        return writeBudget;
+    }
+
+    /**
+     * 保留空闲写入上下文的输出流
+     *
+     * @return 是否保留，未开启时返回false，由调用方关闭输出流
+     */
+    boolean park(FileHandle fileHandle, DFSClient dfsClient, HdfsDataOutputStream out) {
+        if (warmStreams == null) {
+            return false;
+        }
+        warmStreams.put(fileHandle.fileId(), new WarmStream(fileHandle, dfsClient, out));
+        return true;
+    }
+
+    /**
+     * 关闭文件保留的输出流，文件最终提交、删除或者截断时调用
+     */
+    @Override
+    public void closeWarmStream(long fileId) {
+        WarmStream warm;
+        if (warmStreams != null && (warm = warmStreams.asMap().remove(fileId)) != null) {
+            LOG.info("Close warm stream {}", warm.fileHandle());
+            IOUtils.cleanupWithLogger(LOG, warm.out());
+        }
+    }
+
+    /**
+     * 小文件写入上下文转为普通写入上下文时替换缓存
+     */
+    void replace(FileHandle fileHandle, WriteContext oldContext, WriteContext newContext) {
+        CACHE.replace(fileHandle, oldContext, newContext);
+        FILE_ID_INDEX.replace(fileHandle.fileId(), oldContext, newContext);
+    }
 
     void cleanUp(FileHandle fileHandle, WriteContext writeContext) {
         CACHE.remove(fileHandle, writeContext);
+        FILE_ID_INDEX.remove(fileHandle.fileId(), writeContext);
     }
 
     @Override
@@ -51,10 +133,18 @@ public class WriteContextFactoryImpl implements WriteContextFactory {
                     bufferSize,
                     null);
             FileHandle fileHandle = CallContext.getFileHandle(out.getFileId());
-            WriteContext context = WriteContextImpl.get(fileHandle, dfsClient,
-                    dfsClient.createWrappedOutputStream(out, null), this);
+            // 段文件与目标文件位于同一目录下，concat要求源文件与目标文件同目录
+            String partPathPrefix = Utils.getFileIdPath(parentFileId,
+                    "." + name + "." + fileHandle.fileId() + ".part-");
+            HdfsDataOutputStream wrapped = dfsClient.createWrappedOutputStream(out, null);
+            // 小文件模式下先缓存写入数据，最终提交时一次写入
+            WriteContext context = smallFileWriteEnabled ?
+                    new SmallFileWriteContext(fileHandle, dfsClient, wrapped, this,
+                            partPathPrefix) :
+                    WriteContextImpl.get(fileHandle, dfsClient, wrapped, this, partPathPrefix);
             LOG.info("{} created", context);
             CACHE.put(fileHandle, context);
+            FILE_ID_INDEX.put(fileHandle.fileId(), context);
             return fileHandle.fileId();
         } catch (Exception e) {
             if (out != null) {
@@ -72,6 +162,14 @@ public class WriteContextFactoryImpl implements WriteContextFactory {
         return CACHE.get(handle);
     }
 
+    /**
+     * 按照文件id获取写入上下文，如果没有则返回空
+     */
+    @Override
+    public WriteContext cacheGetOption(long fileId) {
+        return FILE_ID_INDEX.get(fileId);
+    }
+
     /**
      * 从缓存中获取写入上下文，如果没有则创建
      */
@@ -80,6 +178,20 @@ public class WriteContextFactoryImpl implements WriteContextFactory {
         try {
             return CACHE.computeIfAbsent(handle, key -> {
                 try {
+                    WarmStream warm = warmStreams == null ? null :
+                            warmStreams.asMap().remove(key.fileId());
+                    if (warm != null) {
+                        if (warm.fileHandle().equals(key)) {
+                            WriteContextImpl ctx = WriteContextImpl.get(key, warm.dfsClient(),
+                                    warm.out(), this);
+                            APPEND_REOPEN_AVOIDED_COUNTER.inc();
+                            LOG.info("{} created with warm stream", ctx);
+                            FILE_ID_INDEX.put(key.fileId(), ctx);
+                            return ctx;
+                        }
+                        // 其他用户保留的输出流，关闭后重新append
+                        IOUtils.cleanupWithLogger(LOG, warm.out());
+                    }
                     String fileIdPath = Utils.getFileIdPath(key.fileId());
                     DFSClient dfsClient = clientCache.getDFSClient(key.principal());
                     HdfsDataOutputStream out = dfsClient.append(
@@ -92,6 +204,7 @@ public class WriteContextFactoryImpl implements WriteContextFactory {
                     WriteContextImpl ctx = WriteContextImpl.get(key,
                             clientCache.getDFSClient(key.principal()), out, this);
                     LOG.info("{} created for append", ctx);
+                    FILE_ID_INDEX.put(key.fileId(), ctx);
                     return ctx;
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -105,4 +218,8 @@ public class WriteContextFactoryImpl implements WriteContextFactory {
             }
         }
     }
+
+    private record WarmStream(FileHandle fileHandle, DFSClient dfsClient,
+                              HdfsDataOutputStream out) {
+    }
 }
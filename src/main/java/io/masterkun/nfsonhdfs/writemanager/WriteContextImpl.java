@@ -1,38 +1,54 @@
 package io.masterkun.nfsonhdfs.writemanager;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.masterkun.nfsonhdfs.util.AppConfig;
 import io.masterkun.nfsonhdfs.util.StringBuilderFormattable;
 import io.masterkun.nfsonhdfs.util.Utils;
 import io.masterkun.nfsonhdfs.vfs.FileHandle;
+import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import org.agrona.concurrent.ManyToOneConcurrentArrayQueue;
+import io.prometheus.client.Histogram;
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.hdfs.DFSClient;
 import org.apache.hadoop.hdfs.DFSInputStream;
+import org.apache.hadoop.hdfs.DFSOutputStream;
 import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.hdfs.client.impl.DfsClientConf;
 import org.apache.hadoop.io.IOUtils;
+import org.dcache.nfs.status.DelayException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.LockSupport;
 
 /**
- * 数据写入上下文，每个上下文对应一个文件写入的数据流
+ * 数据写入上下文，每个上下文对应一个文件写入的数据流。
+ * <p>
+ * 上下文以邮箱的方式运行，客户端请求放入邮箱后调度到固定数量的写入线程上处理，同一上下文同时只会在一个写入线程上运行，
+ * 没有请求时不占用线程，超时检查以及定时提交由定时任务触发调度
  */
 public class WriteContextImpl implements WriteContext, StringBuilderFormattable {
 
@@ -45,60 +61,297 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
             .name("current_write_task")
             .help("Current Write Task")
             .register();
-    private static final ExecutorService WRITE_SERVICE = new ThreadPoolExecutor(
-            Utils.getServerConfig().getVfs().getWriteManager().getWriteThreadInitNum(),
-            Utils.getServerConfig().getVfs().getWriteManager().getWriteThreadMaxNum(),
-            1,
-            TimeUnit.HOURS,
-            new ArrayBlockingQueue<>(10)
-    );
-    private static final ThreadLocal<Queue<PendingAction>> PENDING_ACTION_TL =
-            ThreadLocal.withInitial(
-            () -> new ManyToOneConcurrentArrayQueue<>(128));
-    private static final ThreadLocal<Queue<PendingAction>> UNORDERED_ACTION_TL =
-            ThreadLocal.withInitial(
-            PriorityQueue::new);
-    private static final AppConfig.WriteCommitPolicy WRITE_COMMIT_POLICY = Utils.getServerConfig()
-            .getVfs()
-            .getWriteManager()
-            .getWriteCommitPolicy();
+    private static final Histogram HDFS_WRITE_SIZE_HISTOGRAM = Histogram.build()
+            .name("hdfs_write_size_bytes")
+            .help("Size Of Each Write Call To HDFS Output Stream")
+            .exponentialBuckets(4096, 2, 12)
+            .register();
+    private static final Counter WRITE_COALESCE_REQUESTS_COUNTER = Counter.build()
+            .name("write_coalesce_requests")
+            .help("Nfs Write Requests Passed To Coalescing Stage")
+            .register();
+    private static final Counter WRITE_COALESCE_FLUSHES_COUNTER = Counter.build()
+            .name("write_coalesce_flushes")
+            .help("Write Calls To HDFS Output Stream From Coalescing Stage")
+            .register();
+    /**
+     * 所有上下文在内存中的待写入数据量，不包括已落盘的数据
+     */
+    private static final AtomicLong MEMORY_WRITE_BYTES = new AtomicLong();
+    private static final Histogram GROUP_COMMIT_SIZE_HISTOGRAM = Histogram.build()
+            .name("group_commit_size")
+            .help("Commit Requests Completed By One Sync")
+            .buckets(1, 2, 4, 8, 16, 32, 64)
+            .register();
+    private static final Counter RETRANSMIT_VERIFY_COUNTER = Counter.build()
+            .name("retransmit_verify")
+            .labelNames("method")
+            .help("Repeated Writes Verified By Checksum Or By Reading Back From HDFS")
+            .register();
+    private static final Counter PART_FILE_COUNTER = Counter.build()
+            .name("part_file")
+            .labelNames("action")
+            .help("Part Files Created Or Concatenated")
+            .register();
+    private static final Counter SPARSE_GAP_COUNTER = Counter.build()
+            .name("sparse_gap_filled")
+            .help("Sparse Gaps Filled With Zeros")
+            .register();
+    private static final Counter SPARSE_GAP_BYTES_COUNTER = Counter.build()
+            .name("sparse_gap_filled_bytes")
+            .help("Zero Bytes Written For Sparse Gaps")
+            .register();
+    private static final Histogram QUEUE_DELAY_HISTOGRAM = Histogram.build()
+            .name("write_queue_delay_seconds")
+            .labelNames("type")
+            .help("Delay From Request Enqueued To Dequeued By Write Thread")
+            .exponentialBuckets(0.0001, 4, 10)
+            .register();
+    private static final Histogram REORDER_WAIT_HISTOGRAM = Histogram.build()
+            .name("write_reorder_wait_seconds")
+            .help("Delay From Out Of Order Write Arrived To Written")
+            .exponentialBuckets(0.0001, 4, 10)
+            .register();
+    private static final Histogram REORDER_DEPTH_HISTOGRAM = Histogram.build()
+            .name("write_reorder_depth")
+            .help("Buffered Out Of Order Writes When One Arrives")
+            .exponentialBuckets(1, 2, 12)
+            .register();
+    private static final Histogram HDFS_WRITE_LATENCY_HISTOGRAM = Histogram.build()
+            .name("hdfs_write_latency_seconds")
+            .help("HDFS Output Stream Write Latency")
+            .exponentialBuckets(0.00001, 4, 10)
+            .register();
+    private static final Histogram HDFS_SYNC_LATENCY_HISTOGRAM = Histogram.build()
+            .name("hdfs_sync_latency_seconds")
+            .labelNames("policy")
+            .help("HDFS Output Stream Sync Latency By Commit Policy")
+            .exponentialBuckets(0.0001, 4, 10)
+            .register();
+    private static final Histogram COMMIT_LATENCY_HISTOGRAM = Histogram.build()
+            .name("write_commit_latency_seconds")
+            .help("Commit Request End To End Latency")
+            .exponentialBuckets(0.0001, 4, 10)
+            .register();
+    private static final Counter WRITE_EVENT_COUNTER = Counter.build()
+            .name("write_event")
+            .labelNames("event")
+            .help("Out Of Order Writes, Repeated Writes, Late Sparse Writes And Truncate Restarts")
+            .register();
+    private static final Histogram CONTEXT_LIFETIME_HISTOGRAM = Histogram.build()
+            .name("write_context_lifetime_seconds")
+            .help("Write Context Lifetime")
+            .exponentialBuckets(0.1, 4, 10)
+            .register();
+    /**
+     * 共享的零缓冲区，只读使用
+     */
+    private static final byte[] ZEROS = new byte[64 * 1024];
+    private static final ExecutorService WRITE_SERVICE = createWriteService();
+    /**
+     * 按用户公平调度写入上下文，未开启时为空，直接提交到写入线程池
+     */
+    private static final FairWriteScheduler FAIR_SCHEDULER = createFairScheduler();
+    private static final ScheduledExecutorService TICK_SERVICE =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("write-tick-%d")
+                    .build());
+    /**
+     * 每次调度最多处理的请求数，防止单个上下文长时间占用写入线程
+     */
+    private static final int MAILBOX_BATCH = 64;
     private final FileHandle fileHandle;
     private final DFSClient dfsClient;
     /**
      * 待写入数据量
      */
     private final AtomicLong pendingWriteBytes = new AtomicLong();
+    /**
+     * 内存中的待写入数据量，不包括已落盘的数据
+     */
+    private final AtomicLong memoryWriteBytes = new AtomicLong();
     private final AtomicReference<PendingCommit> finalCommit = new AtomicReference<>();
     private final WriteContextFactoryImpl factory;
     /**
-     * 待写入或待提交请求队列，按照偏移量，写入数据量排序
+     * 邮箱，客户端发来的待写入或待提交请求
+     */
+    private final Queue<PendingAction> mailbox = new ConcurrentLinkedQueue<>();
+    /**
+     * 乱序写入缓冲区，合并首尾相连的乱序写入，只在写入线程中访问
+     */
+    private final ReorderBuffer reorderBuffer = new ReorderBuffer();
+    /**
+     * 乱序提交队列，按照偏移量，提交数据量排序，只在写入线程中访问
+     */
+    private final Queue<PendingCommit> unorderedCommits = new PriorityQueue<>();
+    /**
+     * 已经可以提交的请求，合并后使用一次同步完成，只在写入线程中访问
+     */
+    private final List<PendingCommit> readyCommits = new ArrayList<>();
+    /**
+     * 是否已经提交到写入线程池，保证同一上下文同时只在一个写入线程上运行
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * 尚未对读取可见的写入数据
      */
-    private final Queue<PendingAction> pendingActions;
+    private final PendingWriteIndex pendingWriteIndex;
+    private final long pendingReadMaxBytes;
+    private final AppConfig.WriteCommitPolicy writeCommitPolicy;
+    private final int writeWaitTimeoutMs;
+    private final boolean contextCloseOnFinalCommit;
+    private final int commitIntervalMs;
+    private final int commitLingerMs;
+    private final boolean autoCommit;
+    private final int writeCoalesceBytes;
+    private final int checksumRingSize;
+    /**
+     * 最近写入数据的校验和，用于比对客户端重传的写入
+     */
+    private final ChecksumRing checksumRing;
+    /**
+     * 段文件路径前缀，只有新建文件的上下文可以使用段文件，否则为空
+     */
+    private final String partPathPrefix;
+    private final long partWriteMinGap;
+    private final int partWriteMaxNum;
+    private final long sparseGapGraceMs;
+    /**
+     * 按照起始偏移量排序的段文件，只在写入线程中访问
+     */
+    private final TreeMap<Long, PartFile> parts = new TreeMap<>();
+    private final boolean spillEnabled;
+    private final long spillContextThreshold;
+    private final long spillGlobalThreshold;
+    private final ScheduledFuture<?> tick;
+    private final long createNanos = System.nanoTime();
     private HdfsDataOutputStream out;
     /**
-     * 写入线程
+     * 合并缓冲区，连续的小写入合并后一次写入HDFS，第一次合并时分配
      */
-    private volatile Thread parkThread;
+    private byte[] staging;
     /**
-     * 当前提交的偏移量
+     * 合并缓冲区中尚未写入HDFS的数据大小
      */
+    private int staged;
     private volatile boolean running;
     private volatile Exception writeException;
+    private boolean closed;
+    /**
+     * 输出流是否已交给工厂保留，保留后关闭上下文时不关闭输出流
+     */
+    private boolean parked;
     private boolean firstWrite = true;
+    /**
+     * 稀疏写入补零的范围，起始偏移量到结束偏移量，HDFS不支持覆盖写，之后到达的该范围内的数据只能丢弃
+     */
+    private final TreeMap<Long, Long> zeroFilled = new TreeMap<>();
+    /**
+     * 当前提交的偏移量
+     */
     private long commitOffset = 0;
+    /**
+     * 已经hflush或者hsync，对读取可见的偏移量
+     */
+    private long visibleOffset = 0;
+    /**
+     * 已经hsync持久化的偏移量，稳定写入要求数据持久化后返回
+     */
+    private long syncOffset = 0;
+    /**
+     * 最近一次按序处理请求的时间，超过writeWaitTimeoutMs没有请求则关闭上下文
+     */
+    private long refreshTime;
+    private long commitTime;
+    /**
+     * 第一个等待合并提交的请求的到达时间
+     */
+    private long lingerStartTime;
 
     private WriteContextImpl(FileHandle fileHandle, DFSClient dfsClient, HdfsDataOutputStream out
-            , WriteContextFactoryImpl factory) {
+            , WriteContextFactoryImpl factory, String partPathPrefix) {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig()
+                .getVfs()
+                .getWriteManager();
         this.fileHandle = fileHandle;
         this.dfsClient = dfsClient;
         this.out = out;
         this.factory = factory;
-        this.pendingActions = startWrite();
+        this.pendingReadMaxBytes = config.getPendingReadMaxBytes();
+        this.pendingWriteIndex = new PendingWriteIndex(pendingReadMaxBytes, factory.writeBudget(),
+                fileHandle.principal());
+        this.writeCommitPolicy = config.getWriteCommitPolicy();
+        this.writeWaitTimeoutMs = config.getWriteWaitTimeoutMs();
+        this.contextCloseOnFinalCommit = config.isContextCloseOnFinalCommit();
+        this.commitIntervalMs = config.getCommitIntervalMs();
+        this.commitLingerMs = config.getCommitLingerMs();
+        this.autoCommit = config.isAutoCommit();
+        this.writeCoalesceBytes = config.getWriteCoalesceBytes();
+        this.checksumRingSize = Math.max(0, config.getChecksumRingSize());
+        this.checksumRing = new ChecksumRing(checksumRingSize);
+        this.partPathPrefix = config.isPartWriteEnabled() ? partPathPrefix : null;
+        this.partWriteMinGap = config.getPartWriteMinGap();
+        this.partWriteMaxNum = config.getPartWriteMaxNum();
+        this.sparseGapGraceMs = config.getSparseGapGraceMs();
+        this.spillEnabled = config.isSpillEnabled();
+        this.spillContextThreshold = config.getSpillContextThreshold();
+        this.spillGlobalThreshold = config.getSpillGlobalThreshold();
+        this.refreshTime = this.commitTime = System.currentTimeMillis();
+        this.running = true;
+        CURRENT_WRITE_TASK_GAUGE.inc();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("{} start write", this);
+        }
+        long tickMs = Math.max(1, Math.min(commitIntervalMs, 1000));
+        this.tick = TICK_SERVICE.scheduleWithFixedDelay(this::scheduleQuietly, tickMs, tickMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 创建写入线程池，开启虚拟线程时每次调度使用一个虚拟线程，写入线程阻塞在HDFS写入时不占用平台线程
+     */
+    private static ExecutorService createWriteService() {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        if (config.isWriteVirtualThread()) {
+            ExecutorService executor = Utils.newVirtualThreadExecutor();
+            if (executor != null) {
+                LOG.info("Use virtual thread for write context");
+                return executor;
+            }
+            LOG.warn("Virtual thread is not supported by current jvm, use platform thread");
+        }
+        return Executors.newFixedThreadPool(config.getWriteWorkerNum(),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("write-worker-%d")
+                        .build());
+    }
+
+    private static FairWriteScheduler createFairScheduler() {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        if (!config.isFairSchedulingEnabled()) {
+            return null;
+        }
+        return new FairWriteScheduler(WRITE_SERVICE, config.getWriteWorkerNum(),
+                config.getFairSchedulingQuantumBytes(),
+                config.getFairSchedulingInFlightBytes(),
+                config.getFairSchedulingWeights(),
+                config.getFairSchedulingDefaultWeight());
     }
 
     public static WriteContextImpl get(FileHandle fileHandle, DFSClient dfsClient,
                                        HdfsDataOutputStream out, WriteContextFactoryImpl factory) {
-        return new WriteContextImpl(fileHandle, dfsClient, out, factory);
+        return new WriteContextImpl(fileHandle, dfsClient, out, factory, null);
+    }
+
+    /**
+     * 新建文件的写入上下文，开启分段写入时远端区域写入到以partPathPrefix为前缀的段文件中
+     */
+    public static WriteContextImpl get(FileHandle fileHandle, DFSClient dfsClient,
+                                       HdfsDataOutputStream out, WriteContextFactoryImpl factory,
+                                       String partPathPrefix) {
+        return new WriteContextImpl(fileHandle, dfsClient, out, factory, partPathPrefix);
     }
 
     private void check() throws IOException {
@@ -117,46 +370,132 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
      * 写入数据
      */
     @Override
-    public long handleWrite(long offset, byte[] data, int count) throws IOException {
+    public long handleWrite(long offset, byte[] data, int count, boolean sync) throws IOException {
         check();
         if (running) {
-            pendingActions.add(ByteArrayPendingWrite.get(offset, count, data));
-            unpark();
-            PENDING_WRITE_BYTES_GAUGE.inc(count);
-            return pendingWriteBytes.addAndGet(count);
+            acquireBudget(count);
+            PendingWrite write;
+            try {
+                write = shouldSpill(count) ?
+                        SpilledPendingWrite.get(offset, count, data) :
+                        ByteArrayPendingWrite.get(offset, count, data);
+            } catch (IOException | RuntimeException e) {
+                factory.writeBudget().release(fileHandle.principal(), count);
+                throw e;
+            }
+            return enqueue(write, sync);
         } else {
             throw new IOException("write context already closed");
         }
     }
 
     @Override
-    public long handleWrite(long offset, ByteBuffer buffer) throws IOException {
+    public long handleWrite(long offset, ByteBuffer buffer, boolean sync) throws IOException {
         check();
         if (running) {
             int count = buffer.remaining();
-            pendingActions.add(ByteBufferPendingWrite.get(offset, count, buffer));
-            unpark();
-            PENDING_WRITE_BYTES_GAUGE.inc(count);
-            return pendingWriteBytes.addAndGet(count);
+            acquireBudget(count);
+            PendingWrite write;
+            try {
+                write = shouldSpill(count) ?
+                        SpilledPendingWrite.get(offset, count, buffer) :
+                        ByteBufferPendingWrite.get(offset, count, buffer);
+            } catch (IOException | RuntimeException e) {
+                factory.writeBudget().release(fileHandle.principal(), count);
+                throw e;
+            }
+            return enqueue(write, sync);
         } else {
             throw new IOException("write context already closed");
         }
     }
 
+    /**
+     * 写入数据放入邮箱，同步写入时紧跟一个覆盖该写入的提交请求，写入线程处理写入后与同一批次的其他提交合并同步，
+     * 同步写入要求数据持久化，合并同步时使用hsync，提交完成后返回
+     */
+    private long enqueue(PendingWrite write, boolean sync) throws IOException {
+        pendingWriteIndex.add(write);
+        long pending = addPending(write);
+        mailbox.add(write);
+        CompletableFuture<Void> f = null;
+        PendingCommit commit = null;
+        if (sync) {
+            f = new CompletableFuture<>();
+            commit = new PendingCommit(write.offset(), write.count(), f, true);
+            mailbox.add(commit);
+        }
+        if (!running) {
+            // 与close并发，close已经清理过邮箱时取回本次的请求并释放，否则由close释放
+            if (mailbox.remove(write)) {
+                removePending(write);
+                write.release();
+            }
+            if (commit != null) {
+                mailbox.remove(commit);
+            }
+            throw new IOException("write context already closed");
+        }
+        schedule();
+        if (f != null) {
+            awaitCommit(f);
+        }
+        return pending;
+    }
+
+    /**
+     * 申请写入预算，超出预算时返回NFS4ERR_DELAY(NFSv3为JUKEBOX)，客户端稍后重试，
+     * 邮箱中的待写入数据量因此受写入预算限制
+     */
+    private void acquireBudget(int count) throws DelayException {
+        if (!factory.writeBudget().tryAcquire(fileHandle.principal(), count)) {
+            throw new DelayException("write budget exhausted");
+        }
+    }
+
+    /**
+     * 单个上下文或者所有上下文内存中的待写入数据超出限制时，新到达的写入数据落盘
+     */
+    private boolean shouldSpill(int count) {
+        return spillEnabled && (memoryWriteBytes.get() + count > spillContextThreshold ||
+                MEMORY_WRITE_BYTES.get() + count > spillGlobalThreshold);
+    }
+
+    private long addPending(PendingWrite write) {
+        int count = write.count();
+        if (!(write instanceof SpilledPendingWrite)) {
+            memoryWriteBytes.getAndAdd(count);
+            MEMORY_WRITE_BYTES.getAndAdd(count);
+        }
+        PENDING_WRITE_BYTES_GAUGE.inc(count);
+        return pendingWriteBytes.addAndGet(count);
+    }
+
+    private void removePending(PendingWrite write) {
+        int count = write.count();
+        if (!(write instanceof SpilledPendingWrite)) {
+            memoryWriteBytes.getAndAdd(-count);
+            MEMORY_WRITE_BYTES.getAndAdd(-count);
+        }
+        PENDING_WRITE_BYTES_GAUGE.dec(count);
+        pendingWriteBytes.getAndAdd(-count);
+        factory.writeBudget().release(fileHandle.principal(), count);
+    }
+
+    /**
+     * 从尚未对读取可见的写入数据中读取
+     */
+    @Override
+    public int readPending(long offset, ByteBuffer data) {
+        return running ? pendingWriteIndex.read(offset, data) : 0;
+    }
+
     /**
      * 持久化数据
      */
     @Override
     public void handleCommit(long offset, int count) throws IOException {
-        if (writeException != null) {
-            if (writeException instanceof IOException) {
-                throw (IOException) writeException;
-            } else if (writeException instanceof RuntimeException) {
-                throw (RuntimeException) writeException;
-            } else {
-                throw new RuntimeException(writeException);
-            }
-        }
+        check();
         CompletableFuture<Void> f = new CompletableFuture<>();
         if (running) {
             if (offset == 0 && count == 0) {
@@ -165,12 +504,21 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
                 }
                 finalCommit.set(new PendingCommit(offset, count, f));
             } else {
-                pendingActions.add(new PendingCommit(offset, count, f));
+                PendingCommit commit = new PendingCommit(offset, count, f);
+                mailbox.add(commit);
+                if (!running && mailbox.remove(commit)) {
+                    // 与close并发，close已经清理过邮箱
+                    throw new IOException("write context already closed");
+                }
             }
-            unpark();
+            schedule();
         } else {
             throw new IOException("write context already closed");
         }
+        awaitCommit(f);
+    }
+
+    private void awaitCommit(CompletableFuture<Void> f) throws IOException {
         int commitWaitTimeoutMs = Utils.getServerConfig()
                 .getVfs()
                 .getWriteManager()
@@ -190,205 +538,407 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
         }
     }
 
-    private void park(Thread currentThread, long parkNanos) {
-        parkThread = currentThread;
+    /**
+     * 调度上下文到写入线程运行，已在运行或者等待运行时忽略
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                if (FAIR_SCHEDULER != null) {
+                    FAIR_SCHEDULER.submit(fileHandle.principal(), pendingWriteBytes.get(),
+                            this::run);
+                } else {
+                    WRITE_SERVICE.execute(this::run);
+                }
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 定时调度，异常时只记录日志，定时任务抛出异常后会被取消，上下文不再被定时检查
+     */
+    private void scheduleQuietly() {
         try {
-            LockSupport.parkNanos(this, parkNanos);
+            schedule();
+        } catch (Exception e) {
+            LOG.error("{} schedule error", this, e);
+        }
+    }
+
+    private void run() {
+        try {
+            if (!closed) {
+                step();
+            }
+        } catch (Exception e) {
+            writeException = e;
+            running = false;
+            LOG.error("{} write error", this, e);
+            close();
         } finally {
-            parkThread = null;
+            scheduled.set(false);
+        }
+        if (!closed && !mailbox.isEmpty()) {
+            // 处理期间有新的请求到达
+            schedule();
         }
     }
 
-    private void unpark() {
-        LockSupport.unpark(parkThread);
+    /**
+     * 处理邮箱中的请求，按序的请求直接处理，乱序的请求放入乱序队列等待前面的数据到达
+     */
+    private void step() throws Exception {
+        long current = System.currentTimeMillis();
+        if (autoCommit && pos() > commitOffset && current - commitTime > commitIntervalMs) {
+            // 定时commit，防止有缓冲数据长时间未持久化
+            doCommit(AppConfig.WriteCommitPolicy.HSYNC);
+            commitTime = current;
+        }
+        PendingAction head;
+        for (int i = 0; i < MAILBOX_BATCH && (head = mailbox.poll()) != null; i++) {
+            if (head instanceof PendingWrite write) {
+                QUEUE_DELAY_HISTOGRAM.labels("write").observe(secondsSince(write.createNanos()));
+                // 数据写入处理
+                if (!routeWrite(write, current)) {
+                    // 消息的写入偏移量大于预期的写入偏移量，可能出现消息乱序，将该消息放入乱序缓冲区
+                    REORDER_DEPTH_HISTOGRAM.observe(reorderBuffer.size());
+                    WRITE_EVENT_COUNTER.labels("out_of_order").inc();
+                    reorderBuffer.add(write);
+                    continue;
+                }
+            } else if (head instanceof PendingCommit commit) {
+                QUEUE_DELAY_HISTOGRAM.labels("commit").observe(secondsSince(commit.createNanos()));
+                // 数据提交处理
+                if (commit.offset() + commit.count() > committablePos()) {
+                    // 提交偏移量+提交数据大于预期写入偏移量，可能出现消息乱序，将该消息放入乱序队列
+                    unorderedCommits.add(commit);
+                    continue;
+                }
+                refreshTime = current;
+                addReadyCommit(commit, current);
+            } else {
+                throw new RuntimeException();
+            }
+            // 乱序消息处理
+            drainUnordered(current);
+        }
+        // 本次处理的所有提交请求合并为一次同步
+        groupCommit(current, false);
+        if (!mailbox.isEmpty()) {
+            return;
+        }
+        if (sparseGapGraceMs > 0 && !reorderBuffer.isEmpty() &&
+                current - refreshTime >= sparseGapGraceMs) {
+            // 乱序缓冲区等待的数据超过宽限期仍未到达，按照稀疏写入处理，空洞补零后继续写入
+            fillSparseGap(current);
+        }
+        PendingCommit pendingCommit;
+        if (reorderBuffer.isEmpty() && unorderedCommits.isEmpty() &&
+                (pendingCommit = finalCommit.get()) != null) {
+            // 如果没有任何未处理的消息并且收到最终提交消息，则进行提交
+            groupCommit(current, true);
+            if (contextCloseOnFinalCommit) {
+                // 拼接段文件后再完成最终提交
+                concatParts();
+            }
+            doCommit(pendingCommit);
+            if (contextCloseOnFinalCommit) {
+                if (mailbox.isEmpty()) {
+                    finish();
+                    return;
+                }
+            } else {
+                finalCommit.compareAndSet(pendingCommit, null);
+            }
+        }
+        if (current - refreshTime >= writeWaitTimeoutMs) {
+            finish();
+        }
     }
 
     /**
-     * 开启写入线程
+     * 按照写入偏移量将写入数据交给主文件或者所在区域的段文件处理，与预期写入偏移量相距较远时新建段文件
+     *
+     * @return 是否已处理，写入偏移量大于预期写入偏移量时返回false
      */
-    private Queue<PendingAction> startWrite() {
-        AppConfig.WriteManagerConfig config = Utils.getServerConfig()
-                .getVfs()
-                .getWriteManager();
-        final CompletableFuture<Queue<PendingAction>> f = new CompletableFuture<>();
-        this.running = true;
-        WRITE_SERVICE.submit(() -> {
-            final Queue<PendingAction> pendingActions = PENDING_ACTION_TL.get();
-            final Queue<PendingAction> unorderedActions = UNORDERED_ACTION_TL.get();
-            pendingActions.clear();
-            unorderedActions.clear();
-            f.complete(pendingActions);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("{} start write", WriteContextImpl.this);
-            }
-            WriteContextImpl.CURRENT_WRITE_TASK_GAUGE.inc();
-
-            final Thread currentThread = Thread.currentThread();
-            final int writeWaitTimeoutMs = config.getWriteWaitTimeoutMs();
-            final boolean contextCloseOnFinalCommit = config.isContextCloseOnFinalCommit();
-            final int commitIntervalMs = config.getCommitIntervalMs();
-            final boolean autoCommit =
-                    Utils.getServerConfig().getVfs().getWriteManager().isAutoCommit();
-            final Gauge pendingWriteBytesGauge = WriteContextImpl.PENDING_WRITE_BYTES_GAUGE;
-            final AtomicReference<PendingCommit> finalCommit = WriteContextImpl.this.finalCommit;
-            final AtomicLong pendingWriteBytes = WriteContextImpl.this.pendingWriteBytes;
+    private boolean routeWrite(PendingWrite write, long current) throws IOException {
+        Map.Entry<Long, PartFile> entry = parts.floorEntry(write.offset());
+        PartFile part = entry == null ? null : entry.getValue();
+        long expected = part == null ? pos() : part.pos();
+        if (write.offset() > expected) {
+            if (partPathPrefix == null || parts.size() >= partWriteMaxNum ||
+                    write.offset() - expected < partWriteMinGap) {
+                return false;
+            }
+            createPart(write.offset());
+        }
+        // 消息的写入偏移量小于等于预期的写入偏移量
+        refreshTime = current;
+        writeRegions(write);
+        return true;
+    }
 
-            try {
-                // 设置写入线程，以便于当有新数据写入时及时唤醒
-                long refreshTime = System.currentTimeMillis();
-                long commitTime = refreshTime;
-                long current;
-                long parkNanos = TimeUnit.MILLISECONDS.toNanos(1000);
-                while ((current = System.currentTimeMillis()) - refreshTime < writeWaitTimeoutMs) {
-                    if (autoCommit && out.getPos() > commitOffset && current - commitTime > commitIntervalMs) {
-                        // 定时commit，防止有缓冲数据长时间未持久化
-                        doCommit(AppConfig.WriteCommitPolicy.HSYNC);
-                        commitTime = current;
-                    }
-                    // 客户端发来数据处理
-                    PendingAction head = pendingActions.poll();
-                    if (head == null) {
-                        // 没有客户端发来数据
-                        PendingCommit pendingCommit;
-                        if (unorderedActions.isEmpty() && (pendingCommit = finalCommit.get()) != null) {
-                            // 如果没有任何未处理的消息并且收到最终提交消息，则进行提交
-                            doCommit(pendingCommit);
-                            if (contextCloseOnFinalCommit) {
-                                if (pendingActions.isEmpty()) {
-                                    // 跳出循环
-                                    break;
-                                }
-                            } else {
-                                finalCommit.compareAndSet(pendingCommit, null);
-                            }
-                        }
-                    } else if (head instanceof PendingWrite write) {
-                        // 数据写入处理
-                        if (write.offset() > out.getPos()) {
-                            // 消息的写入偏移量大于预期的写入偏移量，可能出现消息乱序，将该消息放入乱序队列，并继续轮询
-                            unorderedActions.add(write);
-                            park(currentThread, parkNanos);
-                            continue;
-                        } else {
-                            // 消息的写入偏移量小于等于预期的写入偏移量
-                            refreshTime = current;
-                            // 写入数据
-                            doWrite(write);
-                            firstWrite = false;
-                            // 写入成功，更新指标
-                            pendingWriteBytesGauge.dec(write.count());
-                            pendingWriteBytes.getAndAdd(-write.count());
-                        }
-                    } else if (head instanceof PendingCommit commit) {
-                        // 数据提交处理
-                        if (commit.offset() + commit.count() > out.getPos()) {
-                            // 提交偏移量+提交数据大于预期写入偏移量，可能出现消息乱序，将该消息放入乱序队列，并继续轮询
-                            unorderedActions.add(commit);
-                            park(currentThread, parkNanos);
-                            continue;
-                        } else {
-                            // 提交偏移量+提交数据小于等于预期写入偏移量
-                            refreshTime = current;
-                            // 提交数据
-                            doCommit(commit);
-                            commitTime = current;
-                        }
-                    } else {
-                        throw new RuntimeException();
-                    }
+    /**
+     * 写入偏移量所在的区域，跨越段文件边界的写入按边界切分，各部分分别写入所在的区域，
+     * 切片不持有数据，原数据在全部写入后释放
+     */
+    private void writeRegions(PendingWrite write) throws IOException {
+        Map.Entry<Long, PartFile> entry = parts.floorEntry(write.offset());
+        PartFile part = entry == null ? null : entry.getValue();
+        Map.Entry<Long, PartFile> next = parts.higherEntry(write.offset());
+        if (next == null || write.offset() + write.count() <= next.getKey()) {
+            processRegionWrite(part, write);
+            return;
+        }
+        PendingWrite rest = write;
+        try {
+            while (next != null && rest.offset() + rest.count() > next.getKey()) {
+                int head = (int) (next.getKey() - rest.offset());
+                processRegionWrite(part, rest.slice(0, head));
+                rest = rest.slice(head);
+                part = next.getValue();
+                next = parts.higherEntry(rest.offset());
+            }
+            processRegionWrite(part, rest);
+        } finally {
+            pendingWriteIndex.written(write, visibleOffset);
+        }
+    }
 
-                    // 乱序消息处理
-                    boolean park = head == null;
-                    if (!unorderedActions.isEmpty()) {
-                        head = unorderedActions.peek();
-                        while (head != null) {
-                            if (head instanceof PendingWrite write) {
-                                if (write.offset() > out.getPos()) {
-                                    // 写入偏移量大于预期写入偏移量，跳出乱序消息处理循环
-                                    break;
-                                }
-                                head = unorderedActions.poll();
-                                if (head == null || head != write) {
-                                    throw new IllegalArgumentException("unexpected");
-                                }
-                                // 写入乱序消息
-                                doWrite(write);
-                                firstWrite = false;
-                                pendingWriteBytesGauge.dec(write.count());
-                                pendingWriteBytes.getAndAdd(-write.count());
-                            } else if (head instanceof PendingCommit commit) {
-                                if (commit.offset() + commit.count() > out.getPos()) {
-                                    // 提交偏移量+提交数据大于预期写入偏移量，跳出乱序消息处理循环
-                                    park(currentThread, parkNanos);
-                                    break;
-                                }
-                                head = unorderedActions.poll();
-                                if (head == null || head != commit) {
-                                    throw new IllegalArgumentException("unexpected");
-                                }
-                                // 提交乱序消息
-                                doCommit(commit);
-                                commitTime = current;
-                            } else {
-                                throw new RuntimeException();
-                            }
-                            park = false;
-                            head = unorderedActions.peek();
-                        }
-                    }
-                    if (park) {
-                        park(currentThread, parkNanos);
-                    }
-                }
+    private void processRegionWrite(PartFile part, PendingWrite write) throws IOException {
+        if (part == null) {
+            processWrite(write);
+        } else {
+            processPartWrite(part, write);
+        }
+    }
 
-                running = false;
-                doCommit(WRITE_COMMIT_POLICY);
-                if (pendingActions.isEmpty()) {
-                    if (finalCommit.getAndSet(null) != null) {
-                        // 如果没有挂起的消息并且有最终提交消息说明写入已完成
-                        LOG.info("{} closing because write finished", this);
-                    } else {
-                        // 如果没有挂起的消息了但是也没有最终提交消息那么告警
-                        LOG.info("{} closing because no pending commands received", this);
-                    }
-                } else {
-                    // 还有挂起的消息，异常
-                    LOG.error("{} wait timeout for {}ms, current pending actions are: {}", this,
-                            writeWaitTimeoutMs, pendingActions);
-                    throw new TimeoutException("still has pending actions");
+    /**
+     * 使用零填充乱序缓冲区中最小偏移量与所在区域写入偏移量之间的空洞，HDFS不支持稀疏文件
+     */
+    private void fillSparseGap(long current) throws IOException {
+        long offset = reorderBuffer.firstOffset();
+        Map.Entry<Long, PartFile> entry = parts.floorEntry(offset);
+        PartFile part = entry == null ? null : entry.getValue();
+        long expected = part == null ? pos() : part.pos();
+        if (offset <= expected) {
+            return;
+        }
+        LOG.info("{} fill sparse gap {}-{}", this, expected, offset);
+        fillZero(part, offset - expected);
+        refreshTime = current;
+        drainUnordered(current);
+        // 提交请求可能正在等待补零的数据
+        groupCommit(current, false);
+    }
+
+    /**
+     * 从共享的零缓冲区向主文件或者段文件写入指定长度的零
+     */
+    private void fillZero(PartFile part, long count) throws IOException {
+        OutputStream target;
+        long start;
+        if (part == null) {
+            flushStaging();
+            firstWrite = false;
+            target = out;
+            start = out.getPos();
+        } else {
+            target = part.out;
+            start = part.pos();
+        }
+        long remaining = count;
+        while (remaining > 0) {
+            int n = (int) Math.min(ZEROS.length, remaining);
+            target.write(ZEROS, 0, n);
+            remaining -= n;
+        }
+        zeroFilled.put(start, start + count);
+        SPARSE_GAP_COUNTER.inc();
+        SPARSE_GAP_BYTES_COUNTER.inc(count);
+    }
+
+    /**
+     * 重复写的范围是否与补零的范围重叠，重叠时延迟到达的数据与文件中的零不一致，不能按重复写比对
+     */
+    private boolean overlapsZeroFilled(PendingWrite write, int count) {
+        Map.Entry<Long, Long> entry = zeroFilled.lowerEntry(write.offset() + count);
+        if (entry == null || entry.getValue() <= write.offset()) {
+            return false;
+        }
+        LOG.warn("{} receive {} over zero filled range {}-{}, drop the repeated part", this,
+                write, entry.getKey(), entry.getValue());
+        WRITE_EVENT_COUNTER.labels("late_sparse").inc();
+        return true;
+    }
+
+    private void processWrite(PendingWrite write) throws IOException {
+        doWrite(write);
+        firstWrite = false;
+        // 写入成功，更新指标
+        removePending(write);
+        if (pendingWriteIndex.bytes() > pendingReadMaxBytes >> 1) {
+            // 待读取数据过多，hflush使数据对读取可见后释放
+            doCommit(AppConfig.WriteCommitPolicy.HFLUSH);
+        }
+    }
+
+    /**
+     * 处理乱序缓冲区和乱序提交队列中已经与写入偏移量衔接的请求
+     */
+    private void drainUnordered(long current) throws IOException {
+        List<PendingWrite> run;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            while ((run = reorderBuffer.poll(pos())) != null) {
+                progress = true;
+                for (PendingWrite write : run) {
+                    REORDER_WAIT_HISTOGRAM.observe(secondsSince(write.createNanos()));
+                    // 连续数据段在合并缓冲区中合并写入，与已写入数据重叠的部分按照重复写处理，
+                    // 跨越段文件边界时切分
+                    writeRegions(write);
                 }
-            } catch (Exception e) {
-                writeException = e;
-                running = false;
-                LOG.error("{} write error", WriteContextImpl.this, e);
-            } finally {
-                try {
-                    // 清理
-                    running = false;
-                    factory.cleanUp(fileHandle, WriteContextImpl.this);
-                    CURRENT_WRITE_TASK_GAUGE.dec();
-                    IOUtils.cleanupWithLogger(LOG, out);
-                } finally {
-                    PendingCommit pendingCommit = finalCommit.get();
-                    if (pendingCommit != null) {
-                        pendingCommit.hook().completeExceptionally(new TimeoutException("file " +
-                                "commit timeout"));
+            }
+            for (PartFile part : parts.values()) {
+                while ((run = reorderBuffer.poll(part.start, part.pos())) != null) {
+                    progress = true;
+                    for (PendingWrite write : run) {
+                        REORDER_WAIT_HISTOGRAM.observe(secondsSince(write.createNanos()));
+                        writeRegions(write);
                     }
-                    cleanUp(pendingActions);
-                    pendingActions.clear();
-                    cleanUp(unorderedActions);
-                    unorderedActions.clear();
                 }
             }
-        });
+        }
+        PendingCommit commit;
+        while ((commit = unorderedCommits.peek()) != null) {
+            if (commit.offset() + commit.count() > committablePos()) {
+                // 提交偏移量+提交数据大于预期写入偏移量，跳出乱序消息处理循环
+                break;
+            }
+            unorderedCommits.poll();
+            // 提交乱序消息
+            addReadyCommit(commit, current);
+        }
+    }
+
+    /**
+     * 已经写入的数据已满足提交要求时直接完成，否则等待合并提交
+     */
+    private void addReadyCommit(PendingCommit commit, long current) {
+        if (commit.offset() + commit.count() <= (commit.stable() ? syncOffset : commitOffset)) {
+            complete(commit);
+            return;
+        }
+        if (readyCommits.isEmpty()) {
+            lingerStartTime = current;
+            if (commitLingerMs > 0) {
+                // 等待时间到达后重新调度，合并等待期间到达的提交请求
+                TICK_SERVICE.schedule(this::scheduleQuietly, commitLingerMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        readyCommits.add(commit);
+    }
+
+    /**
+     * 合并提交，一次同步完成所有已经可以提交的请求，同步期间到达的请求在下一次同步时合并提交。
+     * 配置了commitLingerMs时等待一段时间以合并更多的提交请求
+     */
+    private void groupCommit(long current, boolean force) throws IOException {
+        if (readyCommits.isEmpty() ||
+                (!force && current - lingerStartTime < commitLingerMs)) {
+            return;
+        }
         try {
-            return f.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+            // 有未持久化的稳定写入时本次合并同步使用hsync
+            boolean stable = readyCommits.stream()
+                    .anyMatch(c -> c.stable() && c.offset() + c.count() > syncOffset);
+            doCommit(stable ? AppConfig.WriteCommitPolicy.HSYNC : writeCommitPolicy);
+            commitTime = current;
+            for (PendingCommit commit : readyCommits) {
+                complete(commit);
+            }
+            GROUP_COMMIT_SIZE_HISTOGRAM.observe(readyCommits.size());
+        } catch (IOException | RuntimeException e) {
+            for (PendingCommit commit : readyCommits) {
+                commit.hook().completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            readyCommits.clear();
         }
     }
 
-    private void cleanUp(Collection<PendingAction> pendingActions) {
+    /**
+     * 写入完成或者等待超时，提交数据后关闭上下文
+     */
+    private void finish() throws Exception {
+        running = false;
+        groupCommit(System.currentTimeMillis(), true);
+        doCommit(writeCommitPolicy);
+        if (mailbox.isEmpty() && reorderBuffer.isEmpty() && unorderedCommits.isEmpty()) {
+            if (finalCommit.getAndSet(null) != null) {
+                // 如果没有挂起的消息并且有最终提交消息说明写入已完成
+                LOG.info("{} closing because write finished", this);
+            } else {
+                // 如果没有挂起的消息了但是也没有最终提交消息那么告警
+                LOG.info("{} closing because no pending commands received", this);
+                // 空闲关闭时保留输出流，释放写入线程但不释放租约和写入管道
+                parked = parts.isEmpty() && factory.park(fileHandle, dfsClient, out);
+            }
+            concatParts();
+            close();
+        } else {
+            // 还有挂起的消息，异常
+            LOG.error("{} wait timeout for {}ms, current pending actions are: {} {} {}",
+                    this, writeWaitTimeoutMs, mailbox, reorderBuffer, unorderedCommits);
+            throw new TimeoutException("still has pending actions");
+        }
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        running = false;
+        tick.cancel(false);
+        CONTEXT_LIFETIME_HISTOGRAM.observe(secondsSince(createNanos));
+        try {
+            // 清理
+            factory.cleanUp(fileHandle, this);
+            CURRENT_WRITE_TASK_GAUGE.dec();
+            if (!parked) {
+                IOUtils.cleanupWithLogger(LOG, out);
+            }
+            abortParts();
+        } finally {
+            pendingWriteIndex.clear();
+            PendingCommit pendingCommit = finalCommit.get();
+            if (pendingCommit != null) {
+                pendingCommit.hook().completeExceptionally(new TimeoutException("file " +
+                        "commit timeout"));
+            }
+            // 逐个取出，与并发放入邮箱的请求不会重复释放或者遗漏
+            List<PendingAction> pendingActions = new ArrayList<>();
+            PendingAction pendingAction;
+            while ((pendingAction = mailbox.poll()) != null) {
+                pendingActions.add(pendingAction);
+            }
+            cleanUp(pendingActions);
+            cleanUp(reorderBuffer.drain());
+            cleanUp(unorderedCommits);
+            unorderedCommits.clear();
+            cleanUp(readyCommits);
+            readyCommits.clear();
+        }
+    }
+
+    private void cleanUp(Collection<? extends PendingAction> pendingActions) {
         if (!pendingActions.isEmpty()) {
             for (PendingAction pendingAction : pendingActions) {
                 try {
@@ -396,8 +946,7 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
                         commit.hook().completeExceptionally(new TimeoutException("write context " +
                                 "cleanup"));
                     } else if (pendingAction instanceof PendingWrite write) {
-                        PENDING_WRITE_BYTES_GAUGE.dec(write.count());
-                        pendingWriteBytes.getAndAdd(-write.count());
+                        removePending(write);
                         write.release();
                     } else {
                         LOG.error("Unexpected {}", pendingAction);
@@ -410,15 +959,17 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
     }
 
     private void doWrite(PendingWrite write) throws IOException {
+        final PendingWrite original = write;
         try {
             int count = write.count();
-            if (write.offset() < out.getPos()) {
+            if (write.offset() < pos()) {
                 // 写入偏移量小于预期写入偏移量，说明有重复写，
                 String fileIdPath = Utils.getFileIdPath(fileHandle.fileId());
                 long writeOffset = write.offset();
                 if (writeOffset == 0 && firstWrite) {
                     // 写偏移量为0，直接覆盖文件从头开始写
                     LOG.warn("{} receive {}, start truncate", this, write);
+                    WRITE_EVENT_COUNTER.labels("truncate_restart").inc();
                     out.close();
                     dfsClient.truncate(fileIdPath, 0);
                     out = dfsClient.append(
@@ -428,33 +979,242 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
                             null,
                             null
                     );
+                    staged = 0;
                     commitOffset = out.getPos();
+                    visibleOffset = syncOffset = commitOffset;
+                    // 文件被截断，之前的写入数据已失效
+                    pendingWriteIndex.visible(Long.MAX_VALUE);
+                    checksumRing.clear();
+                    zeroFilled.clear();
                 } else {
-                    // 提交当前缓冲数据后进行数据比对
-                    doCommit(AppConfig.WriteCommitPolicy.HSYNC);
-                    try (DFSInputStream in = dfsClient.open(fileIdPath)) {
-                        if (writeOffset + count <= out.getPos()) {
-                            // 完全重复写，如果数据比对完全一致那么视作成功写入直接返回
-                            checkRepeatWrite(in, count, write);
-                            return;
-                        } else {
-                            // 部分重复写，部分新数据，如果重复写数据比对完全一致就写入新数据
-                            int off = (int) (out.getPos() - writeOffset);
+                    // 完全重复写时比对全部数据，部分重复写时比对重复的部分，比对一致时视作成功写入
+                    int off = (int) Math.min(count, pos() - writeOffset);
+                    WRITE_EVENT_COUNTER.labels("repeat").inc();
+                    if (!overlapsZeroFilled(write, off) && !verifyChecksum(write, off)) {
+                        // 没有相同范围的校验和记录，提交当前缓冲数据后从HDFS读取比对
+                        RETRANSMIT_VERIFY_COUNTER.labels("read_back").inc();
+                        doCommit(AppConfig.WriteCommitPolicy.HSYNC);
+                        try (DFSInputStream in = dfsClient.open(fileIdPath)) {
                             checkRepeatWrite(in, off, write);
-                            // 切片，只写未重复写的部分
-                            write = write.slice(count - off);
                         }
                     }
+                    if (off == count) {
+                        return;
+                    }
+                    // 切片，只写未重复写的部分
+                    write = write.slice(off);
                 }
             }
             // 写入数据
-            write.writeTo(out);
+            stage(write);
+            if (checksumRingSize > 0) {
+                checksumRing.record(write.offset(), write.count(), write.checksum(write.count()));
+            }
             if (LOG.isTraceEnabled()) {
                 LOG.trace("{} write data {}", this, write);
             }
         } finally {
-            write.release();
+            // 切片与原数据共享缓冲区，由原数据统一释放
+            pendingWriteIndex.written(original, visibleOffset);
+        }
+    }
+
+    /**
+     * 从主文件开始，依次首尾相连的段文件中数据连续写入的偏移量，不大于该偏移量的提交请求可以处理
+     */
+    private long committablePos() {
+        long pos = pos();
+        for (PartFile part : parts.values()) {
+            if (part.start != pos) {
+                break;
+            }
+            pos = part.pos();
+        }
+        return pos;
+    }
+
+    private PartFile createPart(long start) throws IOException {
+        DfsClientConf conf = dfsClient.getConf();
+        String path = partPathPrefix + start;
+        DFSOutputStream partOut = dfsClient.create(path,
+                null,
+                EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE),
+                false,
+                conf.getDefaultReplication(),
+                conf.getDefaultBlockSize(),
+                null,
+                conf.getIoBufferSize(),
+                null);
+        PartFile part = new PartFile(start, path, dfsClient.createWrappedOutputStream(partOut,
+                null));
+        parts.put(start, part);
+        PART_FILE_COUNTER.labels("created").inc();
+        LOG.info("{} create {}", this, part);
+        return part;
+    }
+
+    /**
+     * 写入段文件，重复写的数据只使用校验和环或者从段文件读取比对
+     */
+    private void processPartWrite(PartFile part, PendingWrite write) throws IOException {
+        try {
+            int count = write.count();
+            PendingWrite data = write;
+            long pos = part.pos();
+            if (write.offset() < pos) {
+                int off = (int) Math.min(count, pos - write.offset());
+                WRITE_EVENT_COUNTER.labels("repeat").inc();
+                if (!overlapsZeroFilled(write, off) && !verifyChecksum(write, off)) {
+                    RETRANSMIT_VERIFY_COUNTER.labels("read_back").inc();
+                    part.sync(false);
+                    try (DFSInputStream in = dfsClient.open(part.path)) {
+                        if (!write.dataEquals(in, write.offset() - part.start, off)) {
+                            throw new IOException("different write data");
+                        }
+                    }
+                }
+                data = off == count ? null : write.slice(off);
+            }
+            if (data != null) {
+                long start = System.nanoTime();
+                data.writeTo(part.out);
+                HDFS_WRITE_LATENCY_HISTOGRAM.observe(secondsSince(start));
+                if (checksumRingSize > 0) {
+                    checksumRing.record(data.offset(), data.count(), data.checksum(data.count()));
+                }
+            }
+        } finally {
+            pendingWriteIndex.written(write, visibleOffset);
+        }
+        removePending(write);
+    }
+
+    /**
+     * 关闭主文件以及所有段文件，按偏移量顺序将段文件拼接到目标文件，所有数据必须首尾相连
+     */
+    private void concatParts() throws IOException {
+        if (parts.isEmpty()) {
+            return;
+        }
+        if (sparseGapGraceMs > 0) {
+            // 没有写入的区域按照稀疏写入补零，使主文件与段文件首尾相连
+            PartFile prev = null;
+            for (PartFile part : parts.values()) {
+                long end = prev == null ? pos() : prev.pos();
+                if (end < part.start) {
+                    LOG.info("{} fill sparse gap {}-{}", this, end, part.start);
+                    fillZero(prev, part.start - end);
+                }
+                prev = part;
+            }
         }
+        PartFile last = parts.lastEntry().getValue();
+        if (committablePos() != last.pos()) {
+            throw new IOException("part files are not contiguous, file pos " + pos() + ", parts "
+                    + parts.values());
+        }
+        flushStaging();
+        out.close();
+        commitOffset = visibleOffset = syncOffset = out.getPos();
+        String[] paths = new String[parts.size()];
+        int i = 0;
+        for (PartFile part : parts.values()) {
+            part.out.close();
+            paths[i++] = part.path;
+        }
+        dfsClient.concat(Utils.getFileIdPath(fileHandle.fileId()), paths);
+        PART_FILE_COUNTER.labels("concat").inc(paths.length);
+        LOG.info("{} concat {} part files", this, paths.length);
+        parts.clear();
+    }
+
+    /**
+     * 关闭上下文时删除没有拼接的段文件
+     */
+    private void abortParts() {
+        for (PartFile part : parts.values()) {
+            IOUtils.cleanupWithLogger(LOG, part.out);
+            try {
+                dfsClient.delete(part.path, false);
+            } catch (IOException e) {
+                LOG.warn("{} delete {} error", this, part, e);
+            }
+        }
+        parts.clear();
+    }
+
+    /**
+     * 预期的写入偏移量，包括合并缓冲区中尚未写入HDFS的数据
+     */
+    private long pos() {
+        return out.getPos() + staged;
+    }
+
+    /**
+     * 写入数据追加到合并缓冲区，缓冲区满时写入HDFS，合并缓冲区为空时超过缓冲区大小的写入直接写入HDFS
+     */
+    private void stage(PendingWrite write) throws IOException {
+        WRITE_COALESCE_REQUESTS_COUNTER.inc();
+        if (staged == 0 && write.count() >= writeCoalesceBytes) {
+            long start = System.nanoTime();
+            write.writeTo(out);
+            HDFS_WRITE_LATENCY_HISTOGRAM.observe(secondsSince(start));
+            WRITE_COALESCE_FLUSHES_COUNTER.inc();
+            HDFS_WRITE_SIZE_HISTOGRAM.observe(write.count());
+            return;
+        }
+        if (staging == null) {
+            staging = new byte[writeCoalesceBytes];
+        }
+        long position = write.offset();
+        long end = position + write.count();
+        while (position < end) {
+            int n = write.copyTo(position,
+                    ByteBuffer.wrap(staging, staged, staging.length - staged));
+            position += n;
+            staged += n;
+            if (staged == staging.length) {
+                flushStaging();
+            }
+        }
+    }
+
+    /**
+     * 合并缓冲区中的数据写入HDFS，提交、重复写比对之前调用
+     */
+    private void flushStaging() throws IOException {
+        if (staged == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        out.write(staging, 0, staged);
+        HDFS_WRITE_LATENCY_HISTOGRAM.observe(secondsSince(start));
+        WRITE_COALESCE_FLUSHES_COUNTER.inc();
+        HDFS_WRITE_SIZE_HISTOGRAM.observe(staged);
+        staged = 0;
+    }
+
+    /**
+     * 使用校验和环比对重复写的数据
+     *
+     * @return 比对一致返回true，没有相同范围的校验和记录时返回false
+     * @throws IOException 比对不一致
+     */
+    private boolean verifyChecksum(PendingWrite write, int count) throws IOException {
+        if (checksumRingSize == 0) {
+            return false;
+        }
+        Boolean verified = checksumRing.verify(write.offset(), count, write.checksum(count));
+        if (verified == null) {
+            return false;
+        }
+        RETRANSMIT_VERIFY_COUNTER.labels("checksum").inc();
+        LOG.warn("{} receive repeatable write from offset {} to {}, verify by checksum", this,
+                write.offset(), write.offset() + count);
+        if (!verified) {
+            throw new IOException("different write data");
+        }
+        return true;
     }
 
     /**
@@ -478,26 +1238,76 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
     private void doCommit(PendingCommit commit) throws IOException {
         try {
             if (commit.offset() + commit.count() > commitOffset || (commit.offset() == 0 && commit.count() == 0)) {
-                doCommit(WRITE_COMMIT_POLICY);
+                doCommit(writeCommitPolicy);
             }
-            commit.hook().complete(null);
+            complete(commit);
         } catch (Exception e) {
             commit.hook().completeExceptionally(e);
             throw e;
         }
     }
 
+    private void complete(PendingCommit commit) {
+        commit.hook().complete(null);
+        COMMIT_LATENCY_HISTOGRAM.observe(secondsSince(commit.createNanos()));
+    }
+
+    private static double secondsSince(long nanos) {
+        return (System.nanoTime() - nanos) / 1e9;
+    }
+
     private void doCommit(AppConfig.WriteCommitPolicy commitPolicy) throws IOException {
-        if (commitOffset == out.getPos()) {
+        flushStaging();
+        syncParts(commitPolicy);
+        long pos = out.getPos();
+        long done = switch (commitPolicy) {
+            case FLUSH -> commitOffset;
+            case HFLUSH -> visibleOffset;
+            case HSYNC -> syncOffset;
+        };
+        if (done == pos) {
             return;
         }
+        long start = System.nanoTime();
         switch (commitPolicy) {
             case FLUSH -> out.flush();
             case HSYNC -> out.hsync(EnumSet.of(HdfsDataOutputStream.SyncFlag.UPDATE_LENGTH));
             case HFLUSH -> out.hflush();
-            default -> throw new IllegalArgumentException("illegal type " + WRITE_COMMIT_POLICY);
+            default -> throw new IllegalArgumentException("illegal type " + commitPolicy);
+        }
+        HDFS_SYNC_LATENCY_HISTOGRAM.labels(commitPolicy.name()).observe(secondsSince(start));
+        if (satisfiesCommitPolicy(commitPolicy)) {
+            commitOffset = pos;
+        }
+        if (commitPolicy == AppConfig.WriteCommitPolicy.HSYNC) {
+            syncOffset = pos;
+        }
+        if (commitPolicy != AppConfig.WriteCommitPolicy.FLUSH) {
+            // hflush和hsync后数据都对读取可见，与是否满足提交策略无关
+            visibleOffset = pos;
+            pendingWriteIndex.visible(visibleOffset);
         }
-        commitOffset = out.getPos();
+    }
+
+    private void syncParts(AppConfig.WriteCommitPolicy commitPolicy) throws IOException {
+        if (commitPolicy == AppConfig.WriteCommitPolicy.FLUSH) {
+            for (PartFile part : parts.values()) {
+                part.out.flush();
+            }
+            return;
+        }
+        for (PartFile part : parts.values()) {
+            part.sync(commitPolicy == AppConfig.WriteCommitPolicy.HSYNC);
+        }
+    }
+
+    /**
+     * 同步方式是否满足配置的提交策略，为了读取可见而进行的hflush不能作为hsync策略下的提交
+     */
+    private boolean satisfiesCommitPolicy(AppConfig.WriteCommitPolicy commitPolicy) {
+        return commitPolicy == writeCommitPolicy ||
+                commitPolicy == AppConfig.WriteCommitPolicy.HSYNC ||
+                writeCommitPolicy == AppConfig.WriteCommitPolicy.FLUSH;
     }
 
     @Override
@@ -512,7 +1322,7 @@ public class WriteContextImpl implements WriteContext, StringBuilderFormattable
         buffer.append("WriteContext{handle=");
         fileHandle.formatTo(buffer);
         buffer.append(", pos=")
-                .append(out.getPos())
+                .append(pos())
                 .append(", running=")
                 .append(running)
                 .append('}');
@@ -1,6 +1,7 @@
 package io.masterkun.nfsonhdfs.writemanager;
 
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.dcache.nfs.vfs.VirtualFileSystem.StabilityLevel;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -24,8 +25,11 @@ public interface WriteManager {
      * @param data   数据包
      * @param offset 数据包写入到文件的偏移量
      * @param count  写入数据大小
+     * @param stabilityLevel 客户端要求的稳定级别
+     * @return 实际达到的稳定级别
      */
-    void handleWrite(long fileId, byte[] data, long offset, int count) throws IOException;
+    StabilityLevel handleWrite(long fileId, byte[] data, long offset, int count,
+                               StabilityLevel stabilityLevel) throws IOException;
 
     /**
      * 写入文件数据包
@@ -33,8 +37,11 @@ public interface WriteManager {
      * @param fileId 文件id
      * @param data   数据包
      * @param offset 数据包写入到文件的偏移量
+     * @param stabilityLevel 客户端要求的稳定级别
+     * @return 实际达到的稳定级别
      */
-    void handleWrite(long fileId, ByteBuffer data, long offset) throws IOException;
+    StabilityLevel handleWrite(long fileId, ByteBuffer data, long offset,
+                               StabilityLevel stabilityLevel) throws IOException;
 
     /**
      * 提交数据进行持久化
@@ -44,4 +51,14 @@ public interface WriteManager {
      * @param count  提交数据大小
      */
     void handleCommit(long fileId, long offset, int count) throws IOException;
+
+    /**
+     * 从正在写入但尚未对读取可见的数据中读取
+     *
+     * @param fileId 文件id
+     * @param data   数据缓冲区
+     * @param offset 读取偏移量
+     * @return 读取数据大小，文件没有正在写入或者待写入数据不包含读取偏移量时返回0
+     */
+    int readPending(long fileId, ByteBuffer data, long offset);
 }
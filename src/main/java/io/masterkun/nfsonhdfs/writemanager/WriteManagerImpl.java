@@ -1,27 +1,20 @@
 package io.masterkun.nfsonhdfs.writemanager;
 
 import io.masterkun.nfsonhdfs.CallContext;
-import io.masterkun.nfsonhdfs.util.AppConfig;
-import io.masterkun.nfsonhdfs.util.Utils;
 import io.masterkun.nfsonhdfs.vfs.DfsClientCache;
 import io.masterkun.nfsonhdfs.vfs.FileHandle;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.dcache.nfs.vfs.VirtualFileSystem.StabilityLevel;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public class WriteManagerImpl implements WriteManager {
     private final DfsClientCache dfsClientCache;
-    private final long writeHighWatermark;
-    private final long writeLowWatermark;
     private final WriteContextFactory factory = new WriteContextFactoryImpl();
 
     public WriteManagerImpl(DfsClientCache dfsClientCache) {
         this.dfsClientCache = dfsClientCache;
-        AppConfig.WriteManagerConfig writeManager =
-                Utils.getServerConfig().getVfs().getWriteManager();
-        this.writeHighWatermark = writeManager.getWriteHighWatermark();
-        this.writeLowWatermark = writeManager.getWriteLowWatermark();
     }
 
     @Override
@@ -30,26 +23,30 @@ public class WriteManagerImpl implements WriteManager {
     }
 
     @Override
-    public void handleWrite(long fileId, byte[] data, long offset, int count) throws IOException {
+    public StabilityLevel handleWrite(long fileId, byte[] data, long offset, int count,
+                                      StabilityLevel stabilityLevel) throws IOException {
+        // 追加写入后数据块位置变化
+        dfsClientCache.invalidateLocatedBlocks(fileId);
         FileHandle fileHandle = CallContext.getFileHandle(fileId);
         WriteContext context = factory.cacheGet(fileHandle, dfsClientCache);
-        long pendingWriteBytes = context.handleWrite(offset, data, count);
-        if (pendingWriteBytes > writeHighWatermark) {
-            handleCommit(fileId, Math.max(1, offset - writeLowWatermark), 0);
+        // 超出写入预算时抛出DelayException，由客户端稍后重试
+        if (count > 0) {
+            context.handleWrite(offset, data, count, stabilityLevel != StabilityLevel.UNSTABLE);
         }
+        // 没有数据的写入不需要持久化，直接返回请求的稳定级别
+        return stabilityLevel;
     }
 
     @Override
-    public void handleWrite(long fileId, ByteBuffer data, long offset) throws IOException {
+    public StabilityLevel handleWrite(long fileId, ByteBuffer data, long offset,
+                                      StabilityLevel stabilityLevel) throws IOException {
+        dfsClientCache.invalidateLocatedBlocks(fileId);
         FileHandle fileHandle = CallContext.getFileHandle(fileId);
         WriteContext context = factory.cacheGet(fileHandle, dfsClientCache);
-        int remaining = data.remaining();
-        if (remaining > 0) {
-            long pendingWriteBytes = context.handleWrite(offset, data);
-            if (pendingWriteBytes > writeHighWatermark) {
-                handleCommit(fileId, Math.max(1, offset - writeLowWatermark), 0);
-            }
+        if (data.hasRemaining()) {
+            context.handleWrite(offset, data, stabilityLevel != StabilityLevel.UNSTABLE);
         }
+        return stabilityLevel;
     }
 
     @Override
@@ -58,6 +55,15 @@ public class WriteManagerImpl implements WriteManager {
         WriteContext context = factory.cacheGetOption(fileHandle);
         if (context != null) {
             context.handleCommit(offset, count);
+        } else if (offset == 0 && count == 0) {
+            // 最终提交时关闭空闲保留的输出流，文件完成写入
+            factory.closeWarmStream(fileId);
         }
     }
+
+    @Override
+    public int readPending(long fileId, ByteBuffer data, long offset) {
+        WriteContext context = factory.cacheGetOption(fileId);
+        return context == null ? 0 : context.readPending(offset, data);
+    }
 }
@@ -0,0 +1,53 @@
+package org.apache.hadoop.hdfs;
+
+import org.apache.hadoop.hdfs.protocol.ErasureCodingPolicy;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * 使用已获取的数据块位置打开输入流，避免每次打开输入流都向NameNode请求数据块位置，
+ * DFSInputStream的构造方法不是公开的，所以放在hdfs的包下
+ */
+public final class DFSInputStreamHelper {
+
+    private DFSInputStreamHelper() {
+    }
+
+    /**
+     * 与{@link DFSClient#open(String)}相同，但是使用指定的数据块位置
+     *
+     * @param locatedBlocks 数据块位置，输入流会修改数据块位置列表，所以使用副本
+     */
+    public static DFSInputStream open(DFSClient dfsClient, String src,
+                                      LocatedBlocks locatedBlocks) throws IOException {
+        dfsClient.checkOpen();
+        LocatedBlocks copy = copy(locatedBlocks);
+        ErasureCodingPolicy ecPolicy = copy.getErasureCodingPolicy();
+        if (ecPolicy != null) {
+            return new DFSStripedInputStream(dfsClient, src, true, ecPolicy, copy);
+        }
+        return new DFSInputStream(dfsClient, src, true, copy);
+    }
+
+    /**
+     * 输入流打开时文件是否正在写入，正在写入的文件hflush后的数据不会更新NameNode上的文件长度
+     */
+    public static boolean isUnderConstruction(DFSInputStream in) {
+        LocatedBlocks locatedBlocks = in.locatedBlocks;
+        return locatedBlocks != null && locatedBlocks.isUnderConstruction();
+    }
+
+    private static LocatedBlocks copy(LocatedBlocks locatedBlocks) {
+        return new LocatedBlocks(
+                locatedBlocks.getFileLength(),
+                locatedBlocks.isUnderConstruction(),
+                new ArrayList<>(locatedBlocks.getLocatedBlocks()),
+                locatedBlocks.getLastLocatedBlock(),
+                locatedBlocks.isLastBlockComplete(),
+                locatedBlocks.getFileEncryptionInfo(),
+                locatedBlocks.getErasureCodingPolicy()
+        );
+    }
+}
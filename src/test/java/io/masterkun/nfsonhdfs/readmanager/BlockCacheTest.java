@@ -0,0 +1,94 @@
+package io.masterkun.nfsonhdfs.readmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BlockCacheTest {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private byte[] bytes;
+    private AtomicInteger loads;
+
+    @Before
+    public void before() {
+        bytes = new byte[4 * CHUNK_SIZE];
+        new Random().nextBytes(bytes);
+        loads = new AtomicInteger();
+    }
+
+    private int load(long fileId, long position, ByteBuffer data) {
+        loads.incrementAndGet();
+        if (position >= bytes.length) {
+            return -1;
+        }
+        int n = (int) Math.min(data.remaining(), bytes.length - position);
+        data.put(bytes, (int) position, n);
+        return n;
+    }
+
+    private void assertChunk(BlockCache cache, int chunkIndex, BlockCache.ChunkLoader loader)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(CHUNK_SIZE);
+        assertEquals(CHUNK_SIZE, cache.read(1, (long) chunkIndex * CHUNK_SIZE, data, loader));
+        int offset = chunkIndex * CHUNK_SIZE;
+        assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + CHUNK_SIZE), data.array());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        BlockCache cache = new BlockCache(2 * CHUNK_SIZE, CHUNK_SIZE);
+        assertChunk(cache, 0, this::load);
+        assertChunk(cache, 1, this::load);
+        assertEquals(2, loads.get());
+        assertChunk(cache, 0, this::load);
+        assertEquals(2, loads.get());
+
+        // 两个数据块都被访问过，清除访问标记后淘汰时钟指针指向的数据块0
+        assertChunk(cache, 2, this::load);
+        assertEquals(3, loads.get());
+        assertChunk(cache, 1, this::load);
+        assertEquals(3, loads.get());
+        assertChunk(cache, 0, this::load);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void testPinnedNotEvicted() throws Exception {
+        BlockCache cache = new BlockCache(CHUNK_SIZE, CHUNK_SIZE);
+        AtomicInteger nested = new AtomicInteger();
+        assertChunk(cache, 0, (fileId, position, data) -> {
+            if (nested.getAndIncrement() == 0) {
+                // 唯一的数据块正在加载，其他数据块不经过缓存直接读取
+                assertChunk(cache, 1, this::load);
+            }
+            return load(fileId, position, data);
+        });
+        assertEquals(2, loads.get());
+        assertChunk(cache, 0, this::load);
+        assertEquals(2, loads.get());
+        assertChunk(cache, 1, this::load);
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        BlockCache cache = new BlockCache(2 * CHUNK_SIZE, CHUNK_SIZE);
+        assertChunk(cache, 0, this::load);
+        assertChunk(cache, 0, this::load);
+        assertEquals(1, loads.get());
+        cache.invalidate(1);
+        bytes[0]++;
+        assertChunk(cache, 0, this::load);
+        assertEquals(2, loads.get());
+    }
+}
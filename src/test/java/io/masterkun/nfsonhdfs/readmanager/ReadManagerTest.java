@@ -0,0 +1,115 @@
+package io.masterkun.nfsonhdfs.readmanager;
+
+import io.masterkun.nfsonhdfs.TestUtils;
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.masterkun.nfsonhdfs.vfs.DfsClientCache;
+import io.masterkun.nfsonhdfs.vfs.DfsClientCacheImpl;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DFSOutputStream;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ReadManagerTest {
+
+    private static ReadManager manager;
+    private static DFSClient client;
+    private static String root;
+
+    @BeforeClass
+    public static void pre() throws Exception {
+        TestUtils.kerberosInit();
+        AppConfig config = new AppConfig();
+        root = "/tmp/" + UUID.randomUUID();
+        config.setRootDir(root);
+        config.getVfs().getIdMapping().setStrategy(AppConfig.IdMappingStrategy.TEST);
+        config.getVfs().getReadManager().setReadAheadEnabled(true);
+        config.getVfs().getReadManager().setReadAheadMinWindow(8192);
+        config.getVfs().getReadManager().setReadAheadMaxWindow(65536);
+        config.getVfs().getReadManager().setReadAheadChunkSize(8192);
+        Utils.init(config);
+        DfsClientCache clientCache = new DfsClientCacheImpl();
+
+        client = clientCache.getDFSClient("root");
+        client.mkdirs(root);
+        manager = new ReadManagerImpl(clientCache);
+    }
+
+    @AfterClass
+    public static void end() throws Exception {
+        client.delete(root, true);
+    }
+
+    @Before
+    public void before() {
+        TestUtils.contextInit();
+    }
+
+    private long createFile(String name, byte[] bytes) throws Exception {
+        OutputStream out = client.create(root + "/" + name, true);
+        out.write(bytes);
+        out.close();
+        return ((DFSOutputStream) out).getFileId();
+    }
+
+    @Test
+    public void testReadSequential() throws Exception {
+        byte[] bytes = new byte[1024 * 1024 + 123];
+        new Random().nextBytes(bytes);
+        long fileId = createFile("test-read-sequential", bytes);
+        byte[] read = new byte[bytes.length];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        int offset = 0;
+        while (true) {
+            buffer.clear();
+            int n = manager.read(fileId, buffer, offset);
+            if (n <= 0) {
+                break;
+            }
+            buffer.flip();
+            buffer.get(read, offset, n);
+            offset += n;
+        }
+        assertEquals(bytes.length, offset);
+        assertArrayEquals(bytes, read);
+    }
+
+    @Test
+    public void testReadRandom() throws Exception {
+        byte[] bytes = new byte[256 * 1024];
+        new Random().nextBytes(bytes);
+        long fileId = createFile("test-read-random", bytes);
+        Random random = new Random();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (int i = 0; i < 100; i++) {
+            int offset = random.nextInt(bytes.length - buffer.capacity());
+            buffer.clear();
+            int n = manager.read(fileId, buffer, offset);
+            assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + n),
+                    Arrays.copyOf(buffer.array(), n));
+        }
+    }
+
+    @Test
+    public void testReadAfterInvalidate() throws Exception {
+        byte[] bytes = UUID.randomUUID().toString().getBytes();
+        long fileId = createFile("test-read-invalidate", bytes);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        manager.read(fileId, buffer, 0);
+        manager.invalidate(fileId);
+        buffer.clear();
+        assertEquals(bytes.length, manager.read(fileId, buffer, 0));
+        assertArrayEquals(bytes, buffer.array());
+    }
+}
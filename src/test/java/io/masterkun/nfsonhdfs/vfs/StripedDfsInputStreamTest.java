@@ -0,0 +1,162 @@
+package io.masterkun.nfsonhdfs.vfs;
+
+import io.masterkun.nfsonhdfs.TestUtils;
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import io.masterkun.nfsonhdfs.util.Utils;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DFSOutputStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedDfsInputStreamTest {
+
+    private static DFSClient client;
+    private static String root;
+
+    @BeforeClass
+    public static void pre() throws Exception {
+        TestUtils.kerberosInit();
+        AppConfig config = new AppConfig();
+        root = "/tmp/" + UUID.randomUUID();
+        config.setRootDir(root);
+        config.getVfs().getIdMapping().setStrategy(AppConfig.IdMappingStrategy.TEST);
+        Utils.init(config);
+        client = new DfsClientCacheImpl().getDFSClient("root");
+        client.mkdirs(root);
+    }
+
+    @AfterClass
+    public static void end() throws Exception {
+        client.delete(root, true);
+    }
+
+    private String createFile(String name, byte[] bytes) throws Exception {
+        String path = root + "/" + name;
+        try (OutputStream out = client.create(path, true)) {
+            out.write(bytes);
+        }
+        return path;
+    }
+
+    private StripedDfsInputStream open(String path, int stripeNum, AtomicInteger opens)
+            throws IOException {
+        return new StripedDfsInputStream(0, stripeNum, () -> {
+            opens.incrementAndGet();
+            return client.open(path);
+        });
+    }
+
+    private static byte[] read(StripedDfsInputStream in, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = in.read(position + buffer.position(), buffer);
+            if (n <= 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Test
+    public void testReadInterleaved() throws Exception {
+        byte[] bytes = new byte[256 * 1024 + 17];
+        new Random().nextBytes(bytes);
+        String path = createFile("test-read-interleaved", bytes);
+        AtomicInteger opens = new AtomicInteger();
+        try (StripedDfsInputStream in = open(path, 2, opens)) {
+            assertEquals(bytes.length, in.getFileLength());
+            assertFalse(in.isUnderConstruction());
+            int half = bytes.length / 2;
+            // 两个客户端交替顺序读取，各自使用一个输入流
+            byte[] first = new byte[half];
+            byte[] second = new byte[bytes.length - half];
+            int chunk = 4096;
+            for (int i = 0; i < second.length; i += chunk) {
+                if (i < first.length) {
+                    byte[] data = read(in, i, Math.min(chunk, first.length - i));
+                    System.arraycopy(data, 0, first, i, data.length);
+                }
+                byte[] data = read(in, half + i, Math.min(chunk, second.length - i));
+                System.arraycopy(data, 0, second, i, data.length);
+            }
+            assertArrayEquals(Arrays.copyOfRange(bytes, 0, half), first);
+            assertArrayEquals(Arrays.copyOfRange(bytes, half, bytes.length), second);
+            assertEquals(2, opens.get());
+
+            byte[] random = new byte[100];
+            ByteBuffer buffer = ByteBuffer.wrap(random);
+            assertEquals(100, in.pread(12345, buffer));
+            assertArrayEquals(Arrays.copyOfRange(bytes, 12345, 12445), random);
+            assertEquals(-1, in.read(bytes.length, ByteBuffer.allocate(10)));
+            assertEquals(2, opens.get());
+        }
+    }
+
+    @Test
+    public void testReadTail() throws Exception {
+        String path = root + "/test-read-tail";
+        byte[] bytes = new byte[3 * 4096];
+        new Random().nextBytes(bytes);
+        DFSOutputStream out = (DFSOutputStream) client.create(path, true);
+        try {
+            out.write(bytes, 0, 4096);
+            out.hflush();
+            AtomicInteger opens = new AtomicInteger();
+            try (StripedDfsInputStream in = open(path, 1, opens)) {
+                assertTrue(in.isUnderConstruction());
+                assertEquals(4096, in.getFileLength());
+                out.write(bytes, 4096, 8192);
+                out.hflush();
+
+                // 打开时文件长度之后的数据使用同一个尾部输入流读取
+                for (int offset = 4096; offset < bytes.length; offset += 1024) {
+                    assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + 1024),
+                            read(in, offset, 1024));
+                }
+                assertEquals(2, opens.get());
+                assertTrue(in.isStale());
+
+                // 读取位置超过尾部输入流的文件长度时才重新打开
+                assertEquals(-1, in.read(bytes.length, ByteBuffer.allocate(10)));
+                assertEquals(3, opens.get());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testReadAfterClose() throws Exception {
+        String path = createFile("test-read-after-close", new byte[1024]);
+        StripedDfsInputStream in = open(path, 2, new AtomicInteger());
+        in.close();
+        try {
+            in.read(0, ByteBuffer.allocate(10));
+            fail();
+        } catch (IOException e) {
+            // 已关闭的输入流不能当作文件末尾
+        }
+        try {
+            in.pread(2048, ByteBuffer.allocate(10));
+            fail();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
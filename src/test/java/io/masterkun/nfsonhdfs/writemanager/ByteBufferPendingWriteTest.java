@@ -1,9 +1,67 @@
 package io.masterkun.nfsonhdfs.writemanager;
 
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import io.masterkun.nfsonhdfs.util.Utils;
+import io.masterkun.nfsonhdfs.util.memory.RefCountedBuffer;
+import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class ByteBufferPendingWriteTest {
+
+    @BeforeClass
+    public static void pre() {
+        Utils.init(new AppConfig());
+    }
+
     @Test
     public void test() throws Exception {
+        byte[] bytes = new byte[100];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteBuffer rpc = ByteBuffer.wrap(bytes);
+        PendingWrite write = ByteBufferPendingWrite.get(1000, 100, rpc);
+        Assert.assertFalse(rpc.hasRemaining());
+        // 切片共享数据，不改变原数据的读取位置
+        PendingWrite slice = write.slice(40);
+        Assert.assertEquals(1040, slice.offset());
+        Assert.assertEquals(60, slice.count());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        slice.writeTo(out);
+        Assert.assertArrayEquals(Arrays.copyOfRange(bytes, 40, 100), out.toByteArray());
+        out.reset();
+        write.writeTo(out);
+        Assert.assertArrayEquals(bytes, out.toByteArray());
+        ByteBuffer dst = ByteBuffer.allocate(10);
+        Assert.assertEquals(10, slice.copyTo(1050, dst));
+        Assert.assertArrayEquals(Arrays.copyOfRange(bytes, 50, 60), dst.array());
+        Assert.assertEquals(slice.checksum(60), ByteArrayPendingWrite.get(1040, 60,
+                Arrays.copyOfRange(bytes, 40, 100)).checksum(60));
+        slice.release();
+        write.release();
+        write.release();
+    }
+
+    @Test
+    public void testRefCountedBuffer() {
+        RefCountedBuffer buffer = RefCountedBuffer.allocate(100);
+        Assert.assertEquals(100, buffer.length());
+        RefCountedBuffer slice = buffer.slice(10, 20);
+        Assert.assertEquals(20, slice.length());
+        // 切片共享数据和引用计数
+        Assert.assertEquals(1, slice.refCnt());
+        slice.nioBuffer().put(0, (byte) 1);
+        Assert.assertEquals(1, buffer.nioBuffer().get(10));
+        buffer.retain();
+        Assert.assertEquals(2, slice.refCnt());
+        Assert.assertFalse(buffer.release());
+        Assert.assertTrue(slice.release());
+        Assert.assertThrows(IllegalStateException.class, buffer::retain);
+        Assert.assertThrows(IllegalStateException.class, buffer::release);
     }
 }
@@ -0,0 +1,24 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChecksumRingTest {
+
+    @Test
+    public void testVerify() {
+        ChecksumRing ring = new ChecksumRing(2);
+        ring.record(0, 100, 1);
+        ring.record(100, 100, 2);
+        Assert.assertEquals(Boolean.TRUE, ring.verify(0, 100, 1));
+        Assert.assertEquals(Boolean.FALSE, ring.verify(100, 100, 3));
+        // 范围不一致时无法比对
+        Assert.assertNull(ring.verify(100, 50, 2));
+        // 环满后覆盖最早的记录
+        ring.record(200, 100, 3);
+        Assert.assertNull(ring.verify(0, 100, 1));
+        Assert.assertEquals(Boolean.TRUE, ring.verify(200, 100, 3));
+        ring.clear();
+        Assert.assertNull(ring.verify(200, 100, 3));
+    }
+}
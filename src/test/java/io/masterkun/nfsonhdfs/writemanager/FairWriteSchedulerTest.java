@@ -0,0 +1,110 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import io.masterkun.nfsonhdfs.util.AppConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+
+public class FairWriteSchedulerTest {
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void testRoundRobin() {
+        Queue<Runnable> executor = new ArrayDeque<>();
+        List<String> order = new ArrayList<>();
+        FairWriteScheduler scheduler = new FairWriteScheduler(executor::add, 1, MB, 64 * MB,
+                Map.of(), 1);
+        scheduler.submit("bulk", MB, () -> order.add("t1"));
+        scheduler.submit("bulk", MB, () -> order.add("t2"));
+        scheduler.submit("bulk", MB, () -> order.add("t3"));
+        scheduler.submit("small", 4096, () -> order.add("s1"));
+        // 同时运行的数量不超过1
+        Assert.assertEquals(1, executor.size());
+        Runnable task;
+        while ((task = executor.poll()) != null) {
+            task.run();
+        }
+        // 少量写入的用户不需要等待大量写入的用户全部完成
+        Assert.assertEquals(List.of("t1", "t2", "s1", "t3"), order);
+    }
+
+    @Test
+    public void testInFlightLimit() {
+        Queue<Runnable> executor = new ArrayDeque<>();
+        List<String> order = new ArrayList<>();
+        FairWriteScheduler scheduler = new FairWriteScheduler(executor::add, 4, MB, MB,
+                Map.of("bulk", 4), 1);
+        scheduler.submit("bulk", MB, () -> order.add("t1"));
+        scheduler.submit("bulk", MB, () -> order.add("t2"));
+        scheduler.submit("small", 4096, () -> order.add("s1"));
+        // 大量写入的用户正在运行的数据量达到限制，其他用户可以使用空闲的运行位置
+        Assert.assertEquals(2, executor.size());
+        Runnable task;
+        while ((task = executor.poll()) != null) {
+            task.run();
+        }
+        Assert.assertEquals(List.of("t1", "s1", "t2"), order);
+    }
+
+    @Test
+    public void testRejected() {
+        Queue<Runnable> executor = new ArrayDeque<>();
+        List<String> order = new ArrayList<>();
+        boolean[] reject = {true};
+        FairWriteScheduler scheduler = new FairWriteScheduler(task -> {
+            if (reject[0]) {
+                throw new RejectedExecutionException();
+            }
+            executor.add(task);
+        }, 1, MB, 64 * MB, Map.of(), 1);
+        // 线程池拒绝执行时不抛出异常，任务保留在队列中
+        scheduler.submit("bulk", MB, () -> order.add("t1"));
+        Assert.assertTrue(executor.isEmpty());
+        reject[0] = false;
+        scheduler.submit("bulk", MB, () -> order.add("t2"));
+        // 被拒绝的任务放回队首，运行计数已恢复，可以重新调度
+        Assert.assertEquals(1, executor.size());
+        Runnable task;
+        while ((task = executor.poll()) != null) {
+            task.run();
+        }
+        Assert.assertEquals(List.of("t1", "t2"), order);
+    }
+
+    @Test
+    public void testShippedDefaults() {
+        AppConfig.WriteManagerConfig config = new AppConfig().getVfs().getWriteManager();
+        int concurrency = config.getWriteWorkerNum();
+        Queue<Runnable> executor = new ArrayDeque<>();
+        FairWriteScheduler scheduler = new FairWriteScheduler(executor::add, concurrency,
+                config.getFairSchedulingQuantumBytes(), config.getFairSchedulingInFlightBytes(),
+                config.getFairSchedulingWeights(), config.getFairSchedulingDefaultWeight());
+        // 待写入数据量较小的写入上下文，单个用户最多占用写入线程数减一
+        for (int i = 0; i < concurrency * 2; i++) {
+            scheduler.submit("bulk", MB, () -> {
+            });
+        }
+        Assert.assertEquals(concurrency - 1, executor.size());
+        scheduler.submit("small", 4096, () -> {
+        });
+        Assert.assertEquals(concurrency, executor.size());
+
+        // 待写入数据量较大的写入上下文按实际数据量计入正在运行的数据量，不按额度截断
+        Queue<Runnable> executor2 = new ArrayDeque<>();
+        scheduler = new FairWriteScheduler(executor2::add, concurrency,
+                config.getFairSchedulingQuantumBytes(), config.getFairSchedulingInFlightBytes(),
+                config.getFairSchedulingWeights(), config.getFairSchedulingDefaultWeight());
+        long bytes = config.getFairSchedulingInFlightBytes() / 4;
+        for (int i = 0; i < concurrency * 2; i++) {
+            scheduler.submit("bulk", bytes, () -> {
+            });
+        }
+        Assert.assertEquals(Math.min(4, concurrency - 1), executor2.size());
+    }
+}
@@ -0,0 +1,72 @@
+package io.masterkun.nfsonhdfs.writemanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ReorderBufferTest {
+
+    private static PendingWrite write(long offset, int count) {
+        return ByteArrayPendingWrite.get(offset, count, new byte[count]);
+    }
+
+    @Test
+    public void testMergeAdjacent() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.add(write(300, 100));
+        buffer.add(write(100, 100));
+        buffer.add(write(200, 100));
+        Assert.assertEquals(3, buffer.size());
+        Assert.assertEquals(300, buffer.bytes());
+        Assert.assertNull(buffer.poll(99));
+        List<PendingWrite> run = buffer.poll(100);
+        Assert.assertNotNull(run);
+        Assert.assertEquals(3, run.size());
+        Assert.assertEquals(100, run.get(0).offset());
+        Assert.assertEquals(200, run.get(1).offset());
+        Assert.assertEquals(300, run.get(2).offset());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testGapAndOverlap() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.add(write(100, 100));
+        buffer.add(write(300, 100));
+        buffer.add(write(150, 100));
+        Assert.assertEquals(3, buffer.size());
+        Assert.assertEquals(1, buffer.poll(100).size());
+        // 不重叠的数据段优先取出
+        Assert.assertEquals(150, buffer.poll(200).get(0).offset());
+        Assert.assertNull(buffer.poll(250));
+        Assert.assertEquals(300, buffer.poll(300).get(0).offset());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testDrain() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        buffer.add(write(100, 100));
+        buffer.add(write(100, 100));
+        buffer.add(write(400, 100));
+        Assert.assertEquals(3, buffer.drain().size());
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertEquals(0, buffer.bytes());
+    }
+
+    @Test
+    public void testFirstOffset() {
+        ReorderBuffer buffer = new ReorderBuffer();
+        Assert.assertEquals(Long.MAX_VALUE, buffer.firstOffset());
+        buffer.add(write(300, 100));
+        buffer.add(write(100, 100));
+        Assert.assertEquals(100, buffer.firstOffset());
+        // 重叠的写入也参与计算
+        buffer.add(write(100, 50));
+        buffer.poll(100);
+        Assert.assertEquals(100, buffer.firstOffset());
+        buffer.poll(100);
+        Assert.assertEquals(300, buffer.firstOffset());
+    }
+}
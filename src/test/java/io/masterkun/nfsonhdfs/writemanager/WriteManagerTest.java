@@ -6,9 +6,11 @@ import io.masterkun.nfsonhdfs.util.Utils;
 import io.masterkun.nfsonhdfs.vfs.DfsClientCache;
 import io.masterkun.nfsonhdfs.vfs.DfsClientCacheImpl;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.DFSClient;
 import org.apache.hadoop.hdfs.DFSOutputStream;
 import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.dcache.nfs.vfs.VirtualFileSystem.StabilityLevel;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -21,14 +23,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.UUID;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class WriteManagerTest {
 
     private static WriteManager manager;
+    private static DfsClientCache clientCache;
     private static DFSClient client;
     private static String root;
 
@@ -40,7 +46,7 @@ public class WriteManagerTest {
         config.setRootDir(root);
         config.getVfs().getIdMapping().setStrategy(AppConfig.IdMappingStrategy.TEST);
         Utils.init(config);
-        DfsClientCache clientCache = new DfsClientCacheImpl();
+        clientCache = new DfsClientCacheImpl();
 
         client = clientCache.getDFSClient("root");
         client.mkdirs(root);
@@ -81,12 +87,12 @@ public class WriteManagerTest {
         bout.write(b3);
         bout.write(b4);
         byte[] bytes = bout.toByteArray();
-        manager.handleWrite(fileId, b2, off2, count2);
-        manager.handleWrite(fileId, b1, off1, count1);
-        manager.handleWrite(fileId, b2, off2, count2);
-        manager.handleWrite(fileId, b4, off4, count4);
-        manager.handleWrite(fileId, b3, off3, count3);
-        manager.handleWrite(fileId, b1, off1, count1);
+        manager.handleWrite(fileId, b2, off2, count2, StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, b1, off1, count1, StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, b2, off2, count2, StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, b4, off4, count4, StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, b3, off3, count3, StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, b1, off1, count1, StabilityLevel.UNSTABLE);
         manager.handleCommit(fileId, 0, 0);
         Thread.sleep(1000);
         HdfsFileStatus status = client.getFileInfo(Utils.getFileIdPath(fileId));
@@ -95,6 +101,235 @@ public class WriteManagerTest {
         assertArrayEquals(read, bytes);
     }
 
+    @Test
+    public void testReadPending() throws Exception {
+        OutputStream out = client.create(root + "/test-read-pending", true);
+        out.close();
+        long fileId = ((DFSOutputStream) out).getFileId();
+
+        byte[] b1 = UUID.randomUUID().toString().getBytes();
+        byte[] b2 = UUID.randomUUID().toString().getBytes();
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        config.setPendingReadMaxBytes(1024 * 1024 * 16);
+        try {
+            manager.handleWrite(fileId, b1, 0, b1.length, StabilityLevel.UNSTABLE);
+        } finally {
+            config.setPendingReadMaxBytes(0);
+        }
+        manager.handleWrite(fileId, ByteBuffer.wrap(b2), b1.length, StabilityLevel.UNSTABLE);
+        ByteBuffer buffer = ByteBuffer.allocate(b1.length + b2.length);
+        while (buffer.hasRemaining()) {
+            int read = manager.readPending(fileId, buffer, buffer.position());
+            assertTrue(read > 0);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(b1);
+        bout.write(b2);
+        assertArrayEquals(bout.toByteArray(), buffer.array());
+        manager.handleCommit(fileId, 0, 0);
+    }
+
+    @Test
+    public void testWriteFileSync() throws Exception {
+        OutputStream out = client.create(root + "/test-write-file-sync", true);
+        out.close();
+        long fileId = ((DFSOutputStream) out).getFileId();
+
+        byte[] b1 = UUID.randomUUID().toString().getBytes();
+        assertEquals(StabilityLevel.FILE_SYNC,
+                manager.handleWrite(fileId, b1, 0, b1.length, StabilityLevel.FILE_SYNC));
+        // 同步写入返回后数据已经对读取可见，不需要COMMIT
+        byte[] read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(b1, read);
+        manager.handleCommit(fileId, 0, 0);
+    }
+
+    @Test
+    public void testReadPendingReleasedUnderHsyncPolicy() throws Exception {
+        OutputStream out = client.create(root + "/test-read-pending-hsync", true);
+        out.close();
+        long fileId = ((DFSOutputStream) out).getFileId();
+
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        config.setWriteCommitPolicy(AppConfig.WriteCommitPolicy.HSYNC);
+        config.setPendingReadMaxBytes(64);
+        byte[] b1 = UUID.randomUUID().toString().getBytes();
+        byte[] b2 = UUID.randomUUID().toString().getBytes();
+        try {
+            // 待读取数据超过上限的一半，hflush后释放，hsync策略下同样需要释放
+            manager.handleWrite(fileId, b1, 0, b1.length, StabilityLevel.UNSTABLE);
+        } finally {
+            config.setWriteCommitPolicy(AppConfig.WriteCommitPolicy.HFLUSH);
+            config.setPendingReadMaxBytes(0);
+        }
+        manager.handleWrite(fileId, b2, b1.length, b2.length, StabilityLevel.UNSTABLE);
+        ByteBuffer buffer = ByteBuffer.allocate(b1.length + b2.length);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.readPending(fileId, buffer, 0) > 0 &&
+                System.currentTimeMillis() < deadline) {
+            buffer.clear();
+            Thread.sleep(10);
+        }
+        buffer.clear();
+        assertEquals(0, manager.readPending(fileId, buffer, 0));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(b1);
+        bout.write(b2);
+        byte[] read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(bout.toByteArray(), read);
+        manager.handleCommit(fileId, 0, 0);
+    }
+
+    @Test
+    public void testSmallFileWrite() throws Exception {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        config.setSmallFileWriteEnabled(true);
+        WriteManager smallFileManager;
+        try {
+            smallFileManager = new WriteManagerImpl(clientCache);
+        } finally {
+            config.setSmallFileWriteEnabled(false);
+        }
+        long parentFileId = client.getFileInfo(root).getFileId();
+        long fileId = smallFileManager.create(parentFileId, "test-small-file-write",
+                FsPermission.getFileDefault());
+        byte[] b1 = UUID.randomUUID().toString().getBytes();
+        byte[] b2 = UUID.randomUUID().toString().getBytes();
+        // 乱序写入同样缓存在内存中
+        smallFileManager.handleWrite(fileId, b2, b1.length, b2.length, StabilityLevel.UNSTABLE);
+        smallFileManager.handleWrite(fileId, ByteBuffer.wrap(b1), 0, StabilityLevel.UNSTABLE);
+        ByteBuffer buffer = ByteBuffer.allocate(b1.length + b2.length);
+        assertEquals(buffer.remaining(), smallFileManager.readPending(fileId, buffer, 0));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(b1);
+        bout.write(b2);
+        assertArrayEquals(bout.toByteArray(), buffer.array());
+        smallFileManager.handleCommit(fileId, 0, 0);
+        byte[] read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(bout.toByteArray(), read);
+
+        // 超过阈值后转为普通写入
+        fileId = smallFileManager.create(parentFileId, "test-small-file-promote",
+                FsPermission.getFileDefault());
+        byte[] large = new byte[config.getSmallFileWriteMaxBytes() + 1];
+        smallFileManager.handleWrite(fileId, b1, 0, b1.length, StabilityLevel.UNSTABLE);
+        smallFileManager.handleWrite(fileId, large, b1.length, large.length,
+                StabilityLevel.UNSTABLE);
+        smallFileManager.handleCommit(fileId, 0, 0);
+        HdfsFileStatus status = client.getFileInfo(Utils.getFileIdPath(fileId));
+        assertEquals(b1.length + large.length, status.getLen());
+    }
+
+    @Test
+    public void testSmallFilePromoteUnordered() throws Exception {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        config.setSmallFileWriteEnabled(true);
+        WriteManager smallFileManager;
+        try {
+            smallFileManager = new WriteManagerImpl(clientCache);
+        } finally {
+            config.setSmallFileWriteEnabled(false);
+        }
+        long parentFileId = client.getFileInfo(root).getFileId();
+        long fileId = smallFileManager.create(parentFileId, "test-small-file-promote-unordered",
+                FsPermission.getFileDefault());
+        byte[] bytes = new byte[config.getSmallFileWriteMaxBytes() + 1024];
+        new Random().nextBytes(bytes);
+        int hole = 4096;
+        int tail = config.getSmallFileWriteMaxBytes();
+        // 乱序写入留下空洞，超过阈值后转为普通写入，空洞的数据在转换后到达
+        smallFileManager.handleWrite(fileId, Arrays.copyOfRange(bytes, hole, tail), hole,
+                tail - hole, StabilityLevel.UNSTABLE);
+        smallFileManager.handleWrite(fileId, Arrays.copyOfRange(bytes, tail, bytes.length),
+                tail, bytes.length - tail, StabilityLevel.UNSTABLE);
+        smallFileManager.handleWrite(fileId, Arrays.copyOfRange(bytes, 0, hole), 0, hole,
+                StabilityLevel.UNSTABLE);
+        smallFileManager.handleCommit(fileId, 0, 0);
+        byte[] read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(bytes, read);
+    }
+
+    @Test
+    public void testPartWrite() throws Exception {
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        long parentFileId = client.getFileInfo(root).getFileId();
+        long fileId;
+        config.setPartWriteEnabled(true);
+        config.setPartWriteMinGap(64);
+        try {
+            fileId = manager.create(parentFileId, "test-part-write",
+                    FsPermission.getFileDefault());
+        } finally {
+            config.setPartWriteEnabled(false);
+            config.setPartWriteMinGap(1024 * 1024 * 128);
+        }
+        byte[] bytes = new byte[1024];
+        new Random().nextBytes(bytes);
+        // 前方的写入先到达，写入段文件
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 512, 1024), 512, 512,
+                StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 256, 512), 256, 256,
+                StabilityLevel.UNSTABLE);
+        // 跨越两个段文件边界的写入，切分后分别写入主文件和段文件，与段文件重叠的部分按重复写入比对
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 0, 768), 0, 768,
+                StabilityLevel.UNSTABLE);
+        manager.handleCommit(fileId, 0, 0);
+        HdfsFileStatus status = client.getFileInfo(Utils.getFileIdPath(fileId));
+        assertEquals(bytes.length, status.getLen());
+        byte[] read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(bytes, read);
+
+        // 段文件数量达到上限后的写入进入乱序缓冲区，前面的数据到达后跨越段文件边界的缓冲写入同样切分
+        config.setPartWriteEnabled(true);
+        config.setPartWriteMinGap(64);
+        config.setPartWriteMaxNum(1);
+        try {
+            fileId = manager.create(parentFileId, "test-part-write-buffered",
+                    FsPermission.getFileDefault());
+        } finally {
+            config.setPartWriteEnabled(false);
+            config.setPartWriteMinGap(1024 * 1024 * 128);
+            config.setPartWriteMaxNum(16);
+        }
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 512, 1024), 512, 512,
+                StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 256, 768), 256, 512,
+                StabilityLevel.UNSTABLE);
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 0, 256), 0, 256,
+                StabilityLevel.UNSTABLE);
+        manager.handleCommit(fileId, 0, 0);
+        read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(bytes, read);
+    }
+
+    @Test
+    public void testSparseGapLateWrite() throws Exception {
+        OutputStream out = client.create(root + "/test-sparse-gap-late-write", true);
+        out.close();
+        long fileId = ((DFSOutputStream) out).getFileId();
+
+        AppConfig.WriteManagerConfig config = Utils.getServerConfig().getVfs().getWriteManager();
+        byte[] bytes = new byte[128];
+        new Random().nextBytes(bytes);
+        config.setSparseGapGraceMs(100);
+        try {
+            manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 64, 128), 64, 64,
+                    StabilityLevel.UNSTABLE);
+        } finally {
+            config.setSparseGapGraceMs(0);
+        }
+        // 等待宽限期后空洞补零
+        Thread.sleep(config.getCommitIntervalMs() * 2L);
+        // 补零范围内延迟到达的数据被丢弃，不会导致写入失败
+        manager.handleWrite(fileId, Arrays.copyOfRange(bytes, 0, 64), 0, 64,
+                StabilityLevel.UNSTABLE);
+        manager.handleCommit(fileId, 0, 0);
+        byte[] expected = bytes.clone();
+        Arrays.fill(expected, 0, 64, (byte) 0);
+        byte[] read = IOUtils.toByteArray(client.open(Utils.getFileIdPath(fileId)));
+        assertArrayEquals(expected, read);
+    }
+
     @Test
     public void testWriteCommitEachWrite() throws Exception {
         testWrite(true);
@@ -123,7 +358,8 @@ public class WriteManagerTest {
             if (read == -1) {
                 throw new IllegalArgumentException();
             }
-            manager.handleWrite(fileId, ByteBuffer.wrap(buffer, 0, read), write);
+            manager.handleWrite(fileId, ByteBuffer.wrap(buffer, 0, read), write,
+                    StabilityLevel.UNSTABLE);
             if (commitEachWrite) {
                 manager.handleCommit(fileId, write, read);
             }